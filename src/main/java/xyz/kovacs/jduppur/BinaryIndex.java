@@ -0,0 +1,455 @@
+package xyz.kovacs.jduppur;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/*
+ * Layout (big endian):
+ *   header:  magic, digest length, tag length, tag, entry count, group count, offset and length of the
+ *            entries, the paths, and the path block offsets
+ *   entries: digest bytes + path id, sorted by digest (then path)
+ *   paths:   sorted, front-coded in blocks of PATH_BLOCK paths (the first one of a block is stored in full)
+ *   blocks:  offset of every path block relative to the start of the paths
+ *
+ * The sections are mapped in chunks of at most 1 GB (a single mapping cannot exceed 2 GB), i.e. there is no limit on
+ * the size of the index besides the int ids of the paths.
+ */
+public final class BinaryIndex extends AbstractMap<String, List<String>> {
+
+	private static final Logger LOG = LogManager.getLogger(BinaryIndex.class);
+
+	private static final byte[] MAGIC = "jDupPur\u0001".getBytes(StandardCharsets.US_ASCII);
+	private static final int PATH_BLOCK = 16;
+
+	private final String tag;
+	private final int digestLength;
+	private final long entryCount;
+	private final long groupCount;
+	private final Section entries;
+	private final Section paths;
+	private final Section blocks;
+
+	private BinaryIndex(final String tag, final int digestLength, final long entryCount, final long groupCount,
+			final Section entries, final Section paths, final Section blocks) {
+		this.tag = tag;
+		this.digestLength = digestLength;
+		this.entryCount = entryCount;
+		this.groupCount = groupCount;
+		this.entries = entries;
+		this.paths = paths;
+		this.blocks = blocks;
+	}
+
+	public static boolean isBinary(final File file) throws IOException {
+		try (final InputStream is = FileUtils.openInputStream(file)) {
+			return Arrays.equals(MAGIC, is.readNBytes(MAGIC.length));
+		}
+	}
+
+	public static BinaryIndex open(final File file) throws IOException {
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final ByteBuffer header = channel.map(MapMode.READ_ONLY, 0L, Math.min(channel.size(), 64L * 1024L));
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(MAGIC, magic)) {
+				throw new IllegalArgumentException(file + " is not a binary index");
+			}
+			final int digestLength = header.getInt();
+			final byte[] tag = new byte[header.getInt()];
+			header.get(tag);
+			final long entryCount = header.getLong();
+			final long groupCount = header.getLong();
+			final Section entries = Section.map(channel, header.getLong(), header.getLong());
+			final Section paths = Section.map(channel, header.getLong(), header.getLong());
+			final Section blocks = Section.map(channel, header.getLong(), header.getLong());
+			LOG.info("{} files with {} hashes mapped from binary index {}", entryCount, groupCount, file);
+			return new BinaryIndex(new String(tag, StandardCharsets.UTF_8), digestLength, entryCount, groupCount,
+					entries, paths, blocks);
+		}
+	}
+
+	public static void write(final Map<String, List<String>> index, final File file) throws IOException {
+		final List<String> sortedPaths = new ArrayList<>();
+		final List<Entry<byte[], String>> sortedEntries = new ArrayList<>();
+		String tag = null;
+		int digestLength = -1;
+		for (final Entry<String, List<String>> entry : index.entrySet()) {
+			final String entryTag = entry.getKey().contains(":")
+					? StringUtils.substringBefore(entry.getKey(), ":") + ":"
+					: StringUtils.EMPTY;
+			final byte[] digest = decode(StringUtils.removeStart(entry.getKey(), entryTag));
+			if (tag == null) {
+				tag = entryTag;
+				digestLength = digest.length;
+			} else if (!tag.equals(entryTag) || digestLength != digest.length) {
+				throw new IllegalArgumentException("Digests of a binary index must be of the same hash function");
+			}
+			for (final String path : entry.getValue()) {
+				sortedPaths.add(path);
+				sortedEntries.add(Map.entry(digest, path));
+			}
+		}
+		Collections.sort(sortedPaths);
+		sortedEntries.sort(Comparator.<Entry<byte[], String>, byte[]>comparing(Entry::getKey, Arrays::compareUnsigned)
+				.thenComparing(Entry::getValue));
+		final byte[] tagBytes = StringUtils.defaultString(tag).getBytes(StandardCharsets.UTF_8);
+
+		final File temporary = new File(file.getAbsolutePath() + ".tmp");
+		final long headerLength = MAGIC.length + 4L + 4L + tagBytes.length + 8L * 8L;
+		final long entriesLength = (long) sortedEntries.size() * (Math.max(digestLength, 0) + 4L);
+		final List<Long> blockOffsets = new ArrayList<>(sortedPaths.size() / PATH_BLOCK + 1);
+		final long pathsLength;
+		try (final CountingOutputStream counter = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary), 1024 * 1024));
+				final DataOutputStream out = new DataOutputStream(counter)) {
+			out.write(new byte[(int) headerLength]); // patched at the end
+			// the counter sits in front of the buffer, thus its count is exact without flushing
+
+			for (final Entry<byte[], String> entry : sortedEntries) {
+				out.write(entry.getKey());
+				out.writeInt(Collections.binarySearch(sortedPaths, entry.getValue()));
+			}
+
+			byte[] previousPath = new byte[0];
+			for (int i = 0; i < sortedPaths.size(); ++i) {
+				final byte[] path = sortedPaths.get(i).getBytes(StandardCharsets.UTF_8);
+				if (i % PATH_BLOCK == 0) {
+					blockOffsets.add(counter.getByteCount() - headerLength - entriesLength);
+					writeVarInt(out, path.length);
+					out.write(path);
+				} else {
+					final int mismatch = Arrays.mismatch(previousPath, path);
+					final int shared = mismatch < 0 ? path.length : mismatch;
+					writeVarInt(out, shared);
+					writeVarInt(out, path.length - shared);
+					out.write(path, shared, path.length - shared);
+				}
+				previousPath = path;
+			}
+			pathsLength = counter.getByteCount() - headerLength - entriesLength;
+
+			for (final long blockOffset : blockOffsets) {
+				out.writeLong(blockOffset);
+			}
+		}
+
+		try (final RandomAccessFile header = new RandomAccessFile(temporary, "rw")) {
+			header.write(MAGIC);
+			header.writeInt(digestLength);
+			header.writeInt(tagBytes.length);
+			header.write(tagBytes);
+			header.writeLong(sortedEntries.size());
+			header.writeLong(index.size());
+			header.writeLong(headerLength);
+			header.writeLong(entriesLength);
+			header.writeLong(headerLength + entriesLength);
+			header.writeLong(pathsLength);
+			header.writeLong(headerLength + entriesLength + pathsLength);
+			header.writeLong(8L * blockOffsets.size());
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public int size() {
+		return (int) Math.min(groupCount, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return first(key) >= 0;
+	}
+
+	@Override
+	public List<String> get(final Object key) {
+		final long first = first(key);
+		if (first < 0) {
+			return null;
+		}
+		return group(first, end(first));
+	}
+
+	@Override
+	public Set<Entry<String, List<String>>> entrySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public int size() {
+				return BinaryIndex.this.size();
+			}
+
+			@Override
+			public Iterator<Entry<String, List<String>>> iterator() {
+				return groups(0L, entryCount);
+			}
+		};
+	}
+
+	// the groups, whose digests start with a 16 bit prefix from from (inclusive) to to (exclusive), in the order of
+	// their digests, i.e. the index can be processed in ranges without reading the other groups
+	public Iterator<Entry<String, List<String>>> groups(final int from, final int to) {
+		return groups(lowerBound(from), lowerBound(to));
+	}
+
+	private Iterator<Entry<String, List<String>>> groups(final long first, final long limit) {
+		return new Iterator<>() {
+
+			private long next = first;
+
+			@Override
+			public boolean hasNext() {
+				return next < limit;
+			}
+
+			@Override
+			public Entry<String, List<String>> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final long current = next;
+				next = end(current);
+				return Map.entry(digest(current), group(current, next));
+			}
+		};
+	}
+
+	// the first record, whose digest has at least the given 16 bit prefix
+	private long lowerBound(final int prefix) {
+		long low = 0L;
+		long high = entryCount;
+		while (low < high) {
+			final long middle = (low + high) >>> 1;
+			if (prefix(middle) < prefix) {
+				low = middle + 1L;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private int prefix(final long record) {
+		final long offset = record * (digestLength + 4L);
+		final int high = digestLength > 0 ? Byte.toUnsignedInt(entries.get(offset)) : 0;
+		final int low = digestLength > 1 ? Byte.toUnsignedInt(entries.get(offset + 1)) : 0;
+		return (high << 8) | low;
+	}
+
+	private long first(final Object key) {
+		if (!(key instanceof String) || !StringUtils.startsWith((String) key, tag)) {
+			return -1L;
+		}
+		final byte[] digest;
+		try {
+			digest = Hex.decodeHex(StringUtils.removeStart((String) key, tag));
+		} catch (final DecoderException de) {
+			return -1L;
+		}
+		if (digest.length != digestLength) {
+			return -1L;
+		}
+		long low = 0L;
+		long high = entryCount;
+		while (low < high) {
+			final long middle = (low + high) >>> 1;
+			if (compare(middle, digest) < 0) {
+				low = middle + 1L;
+			} else {
+				high = middle;
+			}
+		}
+		return low < entryCount && compare(low, digest) == 0 ? low : -1L;
+	}
+
+	private long end(final long first) {
+		final byte[] digest = digestBytes(first);
+		long end = first + 1L;
+		while (end < entryCount && compare(end, digest) == 0) {
+			++end;
+		}
+		return end;
+	}
+
+	private int compare(final long record, final byte[] digest) {
+		final long offset = record * (digestLength + 4L);
+		for (int i = 0; i < digestLength; ++i) {
+			final int difference = Byte.toUnsignedInt(entries.get(offset + i)) - Byte.toUnsignedInt(digest[i]);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return 0;
+	}
+
+	private byte[] digestBytes(final long record) {
+		final byte[] digest = new byte[digestLength];
+		entries.get(record * (digestLength + 4L), digest, 0, digestLength);
+		return digest;
+	}
+
+	private String digest(final long record) {
+		return tag + Hex.encodeHexString(digestBytes(record));
+	}
+
+	private List<String> group(final long first, final long end) {
+		final List<String> result = new ArrayList<>((int) (end - first));
+		for (long record = first; record < end; ++record) {
+			result.add(path(entries.getInt(record * (digestLength + 4L) + digestLength)));
+		}
+		return result;
+	}
+
+	private String path(final int id) {
+		long position = blocks.getLong((id / PATH_BLOCK) * 8L);
+		final int length = readVarInt(paths, position);
+		position += varIntLength(length);
+		byte[] path = new byte[length];
+		paths.get(position, path, 0, length);
+		position += length;
+		for (int i = 0; i < id % PATH_BLOCK; ++i) {
+			final int shared = readVarInt(paths, position);
+			position += varIntLength(shared);
+			final int suffix = readVarInt(paths, position);
+			position += varIntLength(suffix);
+			final byte[] next = Arrays.copyOf(path, shared + suffix);
+			paths.get(position, next, shared, suffix);
+			position += suffix;
+			path = next;
+		}
+		return new String(path, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] decode(final String hex) {
+		try {
+			return Hex.decodeHex(hex);
+		} catch (final DecoderException de) {
+			throw new IllegalArgumentException("Digest is not hexadecimal: " + hex, de);
+		}
+	}
+
+	private static void writeVarInt(final DataOutputStream out, final int value) throws IOException {
+		int remaining = value;
+		while ((remaining & ~0x7F) != 0) {
+			out.writeByte((remaining & 0x7F) | 0x80);
+			remaining >>>= 7;
+		}
+		out.writeByte(remaining);
+	}
+
+	private static int readVarInt(final Section in, final long position) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			final byte b = in.get(position + shift / 7);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	// the number of bytes writeVarInt writes for the value
+	private static int varIntLength(final int value) {
+		int result = 1;
+		for (int remaining = value >>> 7; remaining != 0; remaining >>>= 7) {
+			++result;
+		}
+		return result;
+	}
+
+	// a section of the file mapped in chunks, values spanning two chunks are put together byte by byte
+	private static final class Section {
+
+		private static final int CHUNK_BITS = 30;
+		private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1L;
+
+		private final MappedByteBuffer[] chunks;
+
+		private Section(final MappedByteBuffer[] chunks) {
+			this.chunks = chunks;
+		}
+
+		private static Section map(final FileChannel channel, final long offset, final long length)
+				throws IOException {
+			final MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_BITS)];
+			for (int i = 0; i < chunks.length; ++i) {
+				final long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(MapMode.READ_ONLY, offset + start, Math.min(CHUNK_MASK + 1L, length - start));
+			}
+			return new Section(chunks);
+		}
+
+		private byte get(final long position) {
+			return chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK));
+		}
+
+		private int getInt(final long position) {
+			final MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_BITS)];
+			final int offset = (int) (position & CHUNK_MASK);
+			if (offset + 4 <= chunk.limit()) {
+				return chunk.getInt(offset);
+			}
+			int result = 0;
+			for (int i = 0; i < 4; ++i) {
+				result = (result << 8) | Byte.toUnsignedInt(get(position + i));
+			}
+			return result;
+		}
+
+		private long getLong(final long position) {
+			final MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_BITS)];
+			final int offset = (int) (position & CHUNK_MASK);
+			if (offset + 8 <= chunk.limit()) {
+				return chunk.getLong(offset);
+			}
+			long result = 0L;
+			for (int i = 0; i < 8; ++i) {
+				result = (result << 8) | Byte.toUnsignedInt(get(position + i));
+			}
+			return result;
+		}
+
+		private void get(final long position, final byte[] destination, final int offset, final int length) {
+			int done = 0;
+			while (done < length) {
+				final ByteBuffer chunk = chunks[(int) ((position + done) >>> CHUNK_BITS)].duplicate();
+				chunk.position((int) ((position + done) & CHUNK_MASK));
+				final int part = Math.min(length - done, chunk.remaining());
+				chunk.get(destination, offset + done, part);
+				done += part;
+			}
+		}
+	}
+}
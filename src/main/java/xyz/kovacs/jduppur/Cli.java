@@ -1,21 +1,14 @@
 package xyz.kovacs.jduppur;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.function.Function;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.apache.commons.cli.CommandLine;
@@ -24,7 +17,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.Level;
@@ -44,19 +36,32 @@ public final class Cli {
 	private static final String LOGGER_INTERVAL = "l";
 
 	private static final String EXCLUDE = "e";
+	private static final String EXCLUDE_DIRECTORIES = "x";
 
 	private static final String HASH_FUNCTION = "@";
 
 	private static final String CREATE_INDEX = "r";
 	private static final String PARALLEL_INDEXING = "p";
+	private static final String MEMORY_MAPPED = "m";
+	private static final String DEVICE_CONCURRENCY = "j";
 	private static final String SORT_INDEX = "s";
+	private static final String BINARY_INDEX = "b";
 	private static final String UPDATE_INDEX = "a";
+	private static final String INDEX_METADATA = "i";
+	private static final String TRUST_INDEX_TIME = "f";
+	private static final String HASH_CACHE = "k";
+	private static final String MEMORY_BUDGET = "g";
+	private static final String SPILL_DIRECTORY = "gd";
+	private static final String RESUME = "w";
 
 	private static final String CREATE_PURGE_LIST = "u";
 
 	private static final String CHECK = "c";
 	private static final String CHECK_DUPLICATES = "d";
+	private static final String SIZE_PREFILTER = "z";
+	private static final String SAMPLE_TIERS = "t";
 	private static final String CONSOLIDATE_DIRECTORIES = "n";
+	private static final String TRUST_DIGESTS = "y";
 
 	private static final String WRITE_OUTPUT = "o";
 
@@ -72,20 +77,41 @@ public final class Cli {
 					"interval in seconds of logging during crawling, indexing, and purging (must be at least 1, default: Long.MAX_VALUE)")),
 
 			Map.entry(EXCLUDE, Pair.of("exclude", "exclude paths, which match any of these regexes (separator: ' * ')")),
+			Map.entry(EXCLUDE_DIRECTORIES, Pair.of("exclude-directories",
+					"do not descend into directories (given with their absolute path without a trailing '/'), which match any of these regexes, when creating an index with -r,--create-index or updating it with -a,--update-index (separator: ' * ', e.g. '.*/node_modules * .*/\\.git')")),
 			
 			Map.entry(HASH_FUNCTION,
-					Pair.of("hash-function", "overrides the hash function to be used (default: SHA-512)")),
+					Pair.of("hash-function", "overrides the hash function to be used (multiple ones separated by ',' are computed in a single pass with -r,--create-index, the first one is written into -o,--write-output, the others into the same file suffixed with the name of the hash function, e.g. '.md5'), either a message digest of the JVM (e.g. SHA-512, SHA-256, MD5) or one of CRC32C, XXH64, BLAKE3 (the latter ones are written with an algorithm tag, e.g. 'xxh64:<hash>'; the non-cryptographic ones are fast, but duplicates are always confirmed byte-by-byte) (default: SHA-512)")),
 
 			Map.entry(CREATE_INDEX, Pair.of("create-index",
 					"create purgatory index (recursively of the given path), must be coupled with -d,--check-duplicates or -o,--write-index; mutually exclusive with -c,--check")),
 			Map.entry(PARALLEL_INDEXING, Pair.of("parallel-indexing",
-					"if this flag is set, the indexing will be done in parallel (not recommended for HDDs) (default: not parallel)")),
+					"if this flag is set, the indexing will be done in parallel on devices, which are not rotational (on Linux, HDDs are detected and always read sequentially; different devices are read concurrently in any case); comparing indexes for duplicates is also done in parallel, if it is set (default: not parallel)")),
+			Map.entry(DEVICE_CONCURRENCY, Pair.of("device-concurrency",
+					"overrides the number of concurrent readers for the devices of the given mount points, given as '<mount point>=<threads>' pairs separated by ',' (e.g. '/media/usb=1,/mnt/nas=16')")),
+			Map.entry(MEMORY_MAPPED, Pair.of("memory-mapped",
+					"if this flag is set, files of at least 64 MB will be read via memory mapping instead of buffered reads (default: not set)")),
 			Map.entry(WRITE_OUTPUT, Pair.of("write-output",
 					"writing the list created with -r,--create-index or -u,--create-purge-list into the file given with this option (file must not exist beforehand)")),
 			Map.entry(SORT_INDEX,
 					Pair.of("sort-index",
 							"sort index before persisting (0: don't, 1: based on hash, 2: based on path; default: 1)")),
-			Map.entry(UPDATE_INDEX, Pair.of("update-index", "updates an index (i.e. removes files, which do not exist); in place, if not combined with -o,--write-index")),
+			Map.entry(BINARY_INDEX, Pair.of("binary-index",
+					"write the index of -r,--create-index or -a,--update-index in the compact binary format (always sorted based on hash, i.e. -s,--sort-index is ignored), which is read via memory mapping; binary indexes given to -c,--check, -u,--create-purge-list, and -a,--update-index are detected automatically")),
+			Map.entry(UPDATE_INDEX, Pair.of("update-index",
+					"updates an index incrementally: the root of the index (written with -i,--index-metadata, otherwise the common directory of its files) is listed again, files which do not exist anymore are removed, and only new files and files whose size or modification time differ from the metadata of the index are hashed (files without metadata are always hashed, unless -f,--trust-index-time is set); in place, if not combined with -o,--write-index")),
+			Map.entry(TRUST_INDEX_TIME, Pair.of("trust-index-time",
+					"if this flag is set, -a,--update-index takes over the digests of files without metadata, which were not modified after the index file (i.e. copying or touching the index, or modifying files while it was created, makes their digests look valid) (default: not set, i.e. files without metadata are hashed again)")),
+			Map.entry(INDEX_METADATA, Pair.of("index-metadata",
+					"if this flag is set, the size and the modification time of every file is written into the text index of -r,--create-index and -a,--update-index as a comment line after its entry (comment lines are ignored by sha512sum and alike), and the root of the index as a comment line at its beginning; used by -a,--update-index to detect changed files, and kept by it for indexes, which have them already (default: not set)")),
+			Map.entry(MEMORY_BUDGET, Pair.of("memory-budget",
+					"memory budget in MB for building an index with -r,--create-index: beyond it the index used by -d,--check-duplicates and the sort buffers of -o,--write-output are spilled as sorted runs into temporary files (see -gd,--spill-directory), which are merged at the end; mutually exclusive with -b,--binary-index (default: no budget, i.e. the index used by -d,--check-duplicates is kept in memory)")),
+			Map.entry(SPILL_DIRECTORY, Pair.of("spill-directory",
+					"existing directory of the temporary files of -g,--memory-budget, i.e. of the spilled index of -d,--check-duplicates and of the sorted runs; must be coupled with -g,--memory-budget (default: next to the outputs, or the working directory, i.e. not the temporary directory of the JVM, which is often memory-backed)")),
+			Map.entry(RESUME, Pair.of("resume",
+					"journal file of -r,--create-index: every digest is appended to it as soon as it is computed, and it is deleted after a successful run; if it exists (i.e. the previous run with the same journal was interrupted), the run is resumed, i.e. the files in the journal, which did not change since (based on size, modification time, and file key), are not read again, and the outputs of the interrupted run are overwritten, and its temporary files are deleted")),
+			Map.entry(HASH_CACHE, Pair.of("hash-cache",
+					"persistent cache of digests (keyed by path, size, modification time, and file key) consulted and updated by -r,--create-index, i.e. unchanged files are not read again; created if it does not exist, discarded if it was built with another hash function")),
 			
 			Map.entry(CREATE_PURGE_LIST, Pair.of("create-purge-list",
 					"create a list of purgable items, where the first path gives a primary index (files to keep) and the second path gives a purgatory index (files to delete, if duplicate); mutually exclusive with -r,--create-index and -c,--check")),
@@ -93,8 +119,14 @@ public final class Cli {
 			Map.entry(CHECK, Pair.of("check", "read hashes from the given file and check them")),
 			Map.entry(CHECK_DUPLICATES, Pair.of("check-duplicates",
 					"if this flag is set, checking for duplicates (either on the fly via -r,--create-index or cold via -c,--check) will be performed and output onto WARN will be printed (no action on the filesystem)")),
+			Map.entry(SIZE_PREFILTER, Pair.of("size-prefilter",
+					"only hash files, which have the same size as at least one other file (files with unique sizes cannot be duplicates); must be coupled with -r,--create-index and -d,--check-duplicates, mutually exclusive with -o,--write-output")),
+			Map.entry(SAMPLE_TIERS, Pair.of("sample-tiers",
+					"comma separated sample sizes in bytes for tiered partial hashing with -z,--size-prefilter, for each tier the head, the middle, and the tail of the files are hashed, and only files with colliding samples are passed on to the next tier, at the end to the full hashing (0: no partial hashing, default: 65536)")),
 			Map.entry(CONSOLIDATE_DIRECTORIES, Pair.of("consolidate-directories",
-					"consolidate directories in reports via -d,--check-duplicates and for -u,--create-purge-list")));
+					"consolidate directories in reports via -d,--check-duplicates and for -u,--create-purge-list, i.e. report directories, which have the same files (recursively, based on names and hashes in the indexes), instead of their files")),
+			Map.entry(TRUST_DIGESTS, Pair.of("trust-digests",
+					"if this flag is set, files with matching digests of a collision-resistant hash function (i.e. SHA-256, SHA-384, SHA-512, SHA-512/256, SHA3-224, SHA3-256, SHA3-384, SHA3-512, or BLAKE3, given by -@,--hash-function) are considered to be duplicates without comparing them byte-by-byte, the others (e.g. MD5, SHA-1, CRC32C, XXH64) are always compared (default: not set, i.e. all duplicates are confirmed)")));
 
 	static {
 		for (final Entry<String, Pair<String, String>> option : OPTION_MAP.entrySet()) {
@@ -109,12 +141,21 @@ public final class Cli {
 		OPTIONS.getOption(VERY_VERBOSE).setArgs(0);
 		OPTIONS.getOption(QUIET).setArgs(0);
 		OPTIONS.getOption(PARALLEL_INDEXING).setArgs(0);
+		OPTIONS.getOption(MEMORY_MAPPED).setArgs(0);
+		OPTIONS.getOption(BINARY_INDEX).setArgs(0);
+		OPTIONS.getOption(INDEX_METADATA).setArgs(0);
+		OPTIONS.getOption(TRUST_INDEX_TIME).setArgs(0);
 		OPTIONS.getOption(CHECK_DUPLICATES).setArgs(0);
+		OPTIONS.getOption(SIZE_PREFILTER).setArgs(0);
 		OPTIONS.getOption(CONSOLIDATE_DIRECTORIES).setArgs(0);
+		OPTIONS.getOption(TRUST_DIGESTS).setArgs(0);
 		OPTIONS.getOption(CREATE_PURGE_LIST).setArgs(2);
 	}
 
 	private static CommandLine cli;
+	private static Excludes excludes;
+	private static Excludes directoryExcludes;
+	private static HashEngine digest;
 
 	public synchronized static void parse(final String[] args) throws ParseException {
 		final List<String> usedArgs = new ArrayList<>(Arrays.asList(args));
@@ -160,6 +201,11 @@ public final class Cli {
 		}
 
 		internalCheck();
+
+		// compiled once, they are used for every file
+		excludes = Excludes.of(cli.getOptionValue(EXCLUDE));
+		directoryExcludes = Excludes.of(cli.getOptionValue(EXCLUDE_DIRECTORIES));
+		digest = HashEngine.of(getHashFunctions(), cli.hasOption(MEMORY_MAPPED));
 	}
 
 	public static void printOptions() {
@@ -172,16 +218,46 @@ public final class Cli {
 		} else {
 			LOG.debug("parallel-indexing = set (i.e. parallel indexing)");
 		}
+		if (!cli.hasOption(MEMORY_MAPPED)) {
+			LOG.debug("memory-mapped = not set (i.e. buffered reads)");
+		} else {
+			LOG.debug("memory-mapped = set (i.e. memory mapping big files)");
+		}
+		if (!cli.hasOption(BINARY_INDEX)) {
+			LOG.debug("binary-index = not set (i.e. writing text indexes)");
+		} else {
+			LOG.debug("binary-index = set (i.e. writing binary indexes)");
+		}
+		if (!cli.hasOption(INDEX_METADATA)) {
+			LOG.debug("index-metadata = not set (i.e. writing only hashes and paths)");
+		} else {
+			LOG.debug("index-metadata = set (i.e. writing sizes and modification times as well)");
+		}
+		if (!cli.hasOption(TRUST_INDEX_TIME)) {
+			LOG.debug("trust-index-time = not set (i.e. hashing files without metadata again when updating)");
+		} else {
+			LOG.debug("trust-index-time = set (i.e. keeping files without metadata, which are older than the index)");
+		}
 		if (!cli.hasOption(CHECK_DUPLICATES)) {
 			LOG.debug("check-duplicates = not set (i.e. not printing duplicates onto WARN)");
 		} else {
 			LOG.debug("check-duplicates = set (i.e. printing duplicates onto WARN)");
 		}
+		if (!cli.hasOption(SIZE_PREFILTER)) {
+			LOG.debug("size-prefilter = not set (i.e. hashing all files)");
+		} else {
+			LOG.debug("size-prefilter = set (i.e. hashing only files with colliding sizes)");
+		}
 		if (!cli.hasOption(CONSOLIDATE_DIRECTORIES)) {
 			LOG.debug("consolidate-directories = not set (i.e. not consolidating directories)");
 		} else {
 			LOG.debug("consolidate-directories = set (i.e. consolidating directories)");
 		}
+		if (!cli.hasOption(TRUST_DIGESTS)) {
+			LOG.debug("trust-digests = not set (i.e. confirming duplicates byte-by-byte)");
+		} else {
+			LOG.debug("trust-digests = set (i.e. not confirming duplicates with collision-resistant digests)");
+		}
 		if (cli.hasOption(VERY_VERBOSE)) {
 			LOG.debug("log-level = very-verbose (print all messages)");
 		} else if (cli.hasOption(VERBOSE)) {
@@ -206,32 +282,87 @@ public final class Cli {
 		throw new IllegalStateException("No input found with current configuration");
 	}
 
-	public static Set<Pattern> getExcludes() {
-		final String regexes = cli.getOptionValue(EXCLUDE);
-		return Arrays.stream(StringUtils.splitByWholeSeparator(regexes, " * "))
-				.distinct()
-				.map(r -> Pattern.compile(r))
-				.collect(Collectors.toSet());
+	public static Excludes getExcludes() {
+		return excludes;
 	}
 
-	public static Function<InputStream, String> getDigest() {
-		return is -> {
-			try {
-				return (String) DigestUtils.class
-						.getDeclaredMethod(asHexMethod(cli.getOptionValue(HASH_FUNCTION)), InputStream.class)
-						.invoke(null, is);
-			} catch (final IllegalAccessException | IllegalArgumentException | InvocationTargetException
-					| NoSuchMethodException | SecurityException e) {
-				LOG.debug(e);
-				return StringUtils.EMPTY; // safe to ignore, we already tested it in #internalCheck()
-			}
-		};
+	public static Excludes getDirectoryExcludes() {
+		return directoryExcludes;
+	}
+
+	public static HashEngine getDigest() {
+		return digest;
 	}
 
 	public static long getInterval() {
 		return Long.parseLong(cli.getOptionValue(LOGGER_INTERVAL));
 	}
 
+	public static boolean hashCache() {
+		return cli.hasOption(HASH_CACHE);
+	}
+
+	public static String getHashCache() {
+		return cli.getOptionValue(HASH_CACHE);
+	}
+
+	public static boolean indexMetadata() {
+		return cli.hasOption(INDEX_METADATA);
+	}
+
+	public static boolean trustIndexTime() {
+		return cli.hasOption(TRUST_INDEX_TIME);
+	}
+
+	public static boolean resume() {
+		return cli.hasOption(RESUME);
+	}
+
+	public static String getJournal() {
+		return cli.getOptionValue(RESUME);
+	}
+
+	// the outputs of an interrupted run may exist already, they are overwritten
+	private static boolean resuming() {
+		return cli.hasOption(RESUME) && new File(cli.getOptionValue(RESUME)).exists();
+	}
+
+	public static boolean memoryBudget() {
+		return cli.hasOption(MEMORY_BUDGET);
+	}
+
+	// in bytes
+	public static long getMemoryBudget() {
+		return Long.parseLong(cli.getOptionValue(MEMORY_BUDGET)) * 1024L * 1024L;
+	}
+
+	public static boolean spillDirectory() {
+		return cli.hasOption(SPILL_DIRECTORY);
+	}
+
+	public static String getSpillDirectory() {
+		return cli.getOptionValue(SPILL_DIRECTORY);
+	}
+
+	public static List<String> getHashFunctions() {
+		return Arrays.stream(StringUtils.split(cli.getOptionValue(HASH_FUNCTION), ','))
+				.map(String::trim)
+				.collect(Collectors.toList());
+	}
+
+	public static Map<String, Integer> getDeviceConcurrency() {
+		if (!cli.hasOption(DEVICE_CONCURRENCY)) {
+			return Collections.emptyMap();
+		}
+		return Arrays.stream(StringUtils.split(cli.getOptionValue(DEVICE_CONCURRENCY), ','))
+				.map(o -> StringUtils.split(o, '='))
+				.collect(Collectors.toMap(o -> o[0].trim(), o -> Integer.parseInt(o[1].trim())));
+	}
+
+	public static DeviceScheduler getScheduler() {
+		return DeviceScheduler.of(getParallel(), getDeviceConcurrency());
+	}
+
 	public static boolean getParallel() {
 		return cli.hasOption(PARALLEL_INDEXING);
 	}
@@ -256,14 +387,34 @@ public final class Cli {
 		return cli.hasOption(CHECK_DUPLICATES);
 	}
 
+	public static boolean sizePrefilter() {
+		return cli.hasOption(SIZE_PREFILTER);
+	}
+
+	public static List<Integer> getSampleTiers() {
+		return Arrays.stream(StringUtils.split(cli.getOptionValue(SAMPLE_TIERS, "65536"), ','))
+				.map(String::trim)
+				.map(Integer::parseInt)
+				.filter(t -> t > 0)
+				.collect(Collectors.toList());
+	}
+
 	public static boolean consolidateDirectories() {
 		return cli.hasOption(CONSOLIDATE_DIRECTORIES);
 	}
 
+	public static boolean trustDigests() {
+		return cli.hasOption(TRUST_DIGESTS);
+	}
+
 	public static int sort() {
 		return Integer.parseInt(cli.getOptionValue(SORT_INDEX));
 	}
 
+	public static boolean binaryIndex() {
+		return cli.hasOption(BINARY_INDEX);
+	}
+
 	public static boolean writeOutput() {
 		return cli.hasOption(WRITE_OUTPUT);
 	}
@@ -272,6 +423,15 @@ public final class Cli {
 		return cli.getOptionValue(WRITE_OUTPUT);
 	}
 
+	public static List<String> getOutputs() {
+		final List<String> outputs = new ArrayList<>();
+		outputs.add(getOutput());
+		for (final String hashFunction : getHashFunctions().subList(1, getHashFunctions().size())) {
+			outputs.add(getOutput() + "." + StringUtils.remove(hashFunction.toLowerCase(Locale.ENGLISH), "-"));
+		}
+		return outputs;
+	}
+
 	private static void internalCheck() throws ParseException {
 		if (cli.hasOption(CREATE_INDEX)) {
 			if (cli.hasOption(CHECK)) {
@@ -342,28 +502,118 @@ public final class Cli {
 			}
 		}
 
-		if (cli.hasOption(HASH_FUNCTION)) {
-			final String digestName = cli.getOptionValue(HASH_FUNCTION);
+		if (cli.hasOption(EXCLUDE_DIRECTORIES) && !cli.hasOption(CREATE_INDEX) && !cli.hasOption(UPDATE_INDEX)) {
+			throw new ParseException("Excluding directories must be coupled with creating or updating an index");
+		}
 
-			try {
-				DigestUtils.isAvailable(digestName);
-			} catch (final IllegalArgumentException iae) {
-				throw new ParseException("Unrecognised hash function: " + digestName);
+		if (cli.hasOption(INDEX_METADATA)) {
+			if (!cli.hasOption(CREATE_INDEX) && !cli.hasOption(UPDATE_INDEX)) {
+				throw new ParseException("Index metadata must be coupled with creating or updating an index");
+			}
+			if (cli.hasOption(BINARY_INDEX)) {
+				throw new ParseException("Index metadata and binary index are mutually exclusive");
 			}
+		}
+
+		if (cli.hasOption(TRUST_INDEX_TIME) && !cli.hasOption(UPDATE_INDEX)) {
+			throw new ParseException("Trusting the modification time of the index must be coupled with updating an index");
+		}
 
+		if (cli.hasOption(HASH_CACHE) && !cli.hasOption(CREATE_INDEX)) {
+			throw new ParseException("Hash cache must be coupled with creating an index");
+		}
+
+		if (cli.hasOption(RESUME) && !cli.hasOption(CREATE_INDEX)) {
+			throw new ParseException("Resume must be coupled with creating an index");
+		}
+
+		if (cli.hasOption(MEMORY_BUDGET)) {
+			if (!cli.hasOption(CREATE_INDEX)) {
+				throw new ParseException("Memory budget must be coupled with creating an index");
+			}
+			if (cli.hasOption(BINARY_INDEX)) {
+				throw new ParseException("Memory budget and binary index are mutually exclusive");
+			}
 			try {
-				final Method methodCandidate = DigestUtils.class.getDeclaredMethod(asHexMethod(digestName),
-						InputStream.class);
-				if (!(methodCandidate.invoke(null,
-						new ByteArrayInputStream("test".getBytes(StandardCharsets.UTF_8))) instanceof String)) {
-					throw new NoSuchMethodException(
-							"The method " + asHexMethod(digestName) + " is not returning a String");
+				if (Long.parseLong(cli.getOptionValue(MEMORY_BUDGET)) < 1L) {
+					throw new ParseException(
+							"Memory budget must be at least 1, but it was " + cli.getOptionValue(MEMORY_BUDGET));
+				}
+			} catch (final NumberFormatException nfe) {
+				throw new ParseException(
+						"Memory budget must be an integer, but it was " + cli.getOptionValue(MEMORY_BUDGET));
+			}
+		}
+
+		if (cli.hasOption(SPILL_DIRECTORY)) {
+			if (!cli.hasOption(MEMORY_BUDGET)) {
+				throw new ParseException("Spill directory must be coupled with a memory budget");
+			}
+			if (!new File(cli.getOptionValue(SPILL_DIRECTORY)).isDirectory()) {
+				throw new ParseException("Spill directory does not exist: " + cli.getOptionValue(SPILL_DIRECTORY));
+			}
+		}
+
+		if (cli.hasOption(SIZE_PREFILTER)) {
+			if (!cli.hasOption(CREATE_INDEX) || !cli.hasOption(CHECK_DUPLICATES)) {
+				throw new ParseException("Size prefilter must be coupled with creating an index and checking duplicates");
+			}
+			if (cli.hasOption(WRITE_OUTPUT)) {
+				throw new ParseException("Size prefilter and writing an output are mutually exclusive");
+			}
+		}
+
+		if (cli.hasOption(SAMPLE_TIERS)) {
+			if (!cli.hasOption(SIZE_PREFILTER)) {
+				throw new ParseException("Sample tiers must be coupled with size prefilter");
+			}
+			for (final String tier : StringUtils.split(cli.getOptionValue(SAMPLE_TIERS), ',')) {
+				try {
+					if (Integer.parseInt(tier.trim()) < 0) {
+						throw new ParseException("Sample sizes must not be negative, but it was " + tier);
+					}
+				} catch (final NumberFormatException nfe) {
+					throw new ParseException("Sample sizes must be integers, but it was " + tier);
+				}
+			}
+		}
+
+		if (cli.hasOption(HASH_FUNCTION)) {
+			for (final String digestName : getHashFunctions()) {
+				try {
+					HashEngine.of(digestName, false);
+				} catch (final IllegalArgumentException iae) {
+					LOG.debug(iae);
+					throw new ParseException("Unrecognised hash function: " + digestName);
+				}
+			}
+			if (getHashFunctions().size() > 1) {
+				if (!cli.hasOption(CREATE_INDEX) || !cli.hasOption(WRITE_OUTPUT)) {
+					throw new ParseException(
+							"Multiple hash functions must be coupled with creating an index and writing an output");
+				}
+				for (final String output : getOutputs()) {
+					if (new File(output).exists() && !resuming()) {
+						throw new ParseException("File for output alread exists: " + output);
+					}
+				}
+			}
+		}
+
+		if (cli.hasOption(DEVICE_CONCURRENCY)) {
+			for (final String override : StringUtils.split(cli.getOptionValue(DEVICE_CONCURRENCY), ',')) {
+				final String[] pair = StringUtils.split(override, '=');
+				if (pair.length != 2 || !new File(pair[0].trim()).exists()) {
+					throw new ParseException("Device concurrency must be given for existing mount points, but it was "
+							+ override);
+				}
+				try {
+					if (Integer.parseInt(pair[1].trim()) < 1) {
+						throw new ParseException("Device concurrency must be at least 1, but it was " + override);
+					}
+				} catch (final NumberFormatException nfe) {
+					throw new ParseException("Device concurrency must be an integer, but it was " + override);
 				}
-			} catch (final NoSuchMethodException | SecurityException | IllegalAccessException | IllegalArgumentException
-					| InvocationTargetException e) {
-				LOG.debug(e);
-				throw new ParseException("Utility method " + asHexMethod(digestName) + " not found in "
-						+ DigestUtils.class.getSimpleName());
 			}
 		}
 
@@ -380,7 +630,7 @@ public final class Cli {
 			}
 		}
 
-		if (cli.hasOption(WRITE_OUTPUT)) {
+		if (cli.hasOption(WRITE_OUTPUT) && !(resuming() && new File(cli.getOptionValue(WRITE_OUTPUT)).exists())) {
 			if (new File(cli.getOptionValue(WRITE_OUTPUT)).exists()) {
 				throw new ParseException("File for output alread exists: " + cli.getOptionValue(WRITE_OUTPUT));
 			}
@@ -394,8 +644,4 @@ public final class Cli {
 			}
 		}
 	}
-
-	private static String asHexMethod(String digestName) {
-		return StringUtils.remove(digestName.toLowerCase(Locale.ENGLISH), "-") + "Hex";
-	}
 }
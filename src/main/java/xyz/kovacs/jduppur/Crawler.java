@@ -3,38 +3,60 @@ package xyz.kovacs.jduppur;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.apache.commons.collections4.MultiValuedMap;
-import org.apache.commons.collections4.SetUtils;
-import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import xyz.kovacs.jduppur.FileRecord.Type;
+
 public final class Crawler {
 
 	private static final Logger LOG = LogManager.getLogger(Crawler.class);
 
-	private static int recursionLevel = 0;
+	private static final int PIPELINE_CAPACITY = 1024; // in directories
 
 	private static CrawlerLogger crawlerLogger = new CrawlerLogger(Long.MAX_VALUE);
 	private static Thread crawlerLoggerThread;
@@ -47,145 +69,302 @@ public final class Crawler {
 		return crawlerLogger;
 	}
 
-	public synchronized static Set<String> list(final String root, final Set<Pattern> excludes) {
-		recursionLevel++;
-
-		final File rootFile = new File(root);
-		if (!rootFile.isAbsolute()) {
+	// the entries, which are not listed (e.g. excluded files and directories, or symlinks), are passed to unlisted
+	public static Map<String, FileRecord> list(final String root, final Excludes excludes,
+			final Excludes directoryExcludes, final boolean parallel, final Consumer<String> unlisted) {
+		if (!new File(root).isAbsolute()) {
 			throw new IllegalArgumentException("Path must be absolute, it was: " + root);
 		}
 
-		LOG.trace("[level: {}] Listing {}", recursionLevel, root);
-		final File[] files = rootFile.listFiles();
-		LOG.trace("[level: {}] {} files in {}", recursionLevel, ArrayUtils.getLength(files), root);
-		if (ArrayUtils.getLength(files) == 0) {
-			return Collections.emptySet();
+		final ConcurrentMap<String, FileRecord> result = new ConcurrentHashMap<>();
+		walk(root, excludes, directoryExcludes, parallel,
+				files -> files.forEach(file -> result.put(file.getPath(), file)), unlisted, new AtomicBoolean(false));
+		return result;
+	}
+
+	// once cancelled, the directories waiting to be listed are skipped
+	private static void walk(final String root, final Excludes excludes, final Excludes directoryExcludes,
+			final boolean parallel, final Consumer<Collection<FileRecord>> sink, final Consumer<String> unlisted,
+			final AtomicBoolean cancelled) {
+		final ForkJoinPool pool = new ForkJoinPool(parallel ? Runtime.getRuntime().availableProcessors() : 1);
+		try {
+			pool.invoke(new Lister(Paths.get(root), excludes, directoryExcludes, sink, unlisted, cancelled));
+		} finally {
+			pool.shutdown();
 		}
-		final Set<String> directResults = Arrays.stream(files)
-				.filter(FilePredicate.EXISTS)
-				.filter(FilePredicate.READABLE)
-				.filter(FilePredicate.NOT_SYMLINK)
-				.filter(FilePredicate.IS_FILE)
-				.map(File::getAbsolutePath)
-				.map(jDupPur::properAbsolutePath)
-				.filter(p -> {
-					for (final Pattern pattern : excludes) {
-						if (pattern.matcher(p).matches()) {
-							return false;
-						}
-					}
-					return true;
-				})
-				.collect(Collectors.toSet());
-		crawlerLogger.addFiles(directResults);
-		LOG.trace("[level: {}] {} real files in {}", recursionLevel, directResults.size(), root);
-		final Set<String> indirectResults = Arrays.stream(files)
-				.filter(FilePredicate.EXISTS)
-				.filter(FilePredicate.READABLE)
-				.filter(FilePredicate.NOT_SYMLINK)
-				.filter(FilePredicate.IS_DIRECTORY)
-				.map(File::getAbsolutePath)
-				.map(jDupPur::properAbsolutePath)
-				.flatMap(d -> list(d, excludes).stream())
-				.collect(Collectors.toSet());
-		LOG.trace("[level: {}] {} files recursively in {}", recursionLevel, indirectResults.size(), root);
-
-		--recursionLevel;
-		return SetUtils.union(directResults, indirectResults);
 	}
 
-	public synchronized static Map<String, List<String>> index(final Set<String> fileList,
-			final Function<InputStream, String> digestFunction, final boolean parallel, final Set<Pattern> excludes) {
+	public synchronized static Set<String> sizeCollisions(final Map<String, FileRecord> fileList) {
+		final Map<Long, List<String>> bySize = new HashMap<>();
+		for (final FileRecord file : fileList.values()) {
+			bySize.computeIfAbsent(file.getSize(), k -> new ArrayList<>(1)).add(file.getPath());
+		}
+
+		final Set<String> result = new HashSet<>();
+		long skippedCount = 0L;
+		long skippedSize = 0L;
+		for (final Entry<Long, List<String>> bucket : bySize.entrySet()) {
+			if (bucket.getValue().size() > 1) {
+				result.addAll(bucket.getValue());
+			} else {
+				++skippedCount;
+				skippedSize += bucket.getKey();
+			}
+		}
+		crawlerLogger.skipFiles(skippedCount, skippedSize);
+
+		LOG.info("{} files (with total size {}) skipped, because their size is unique; {} files in {} size groups left",
+				skippedCount, FileUtils.byteCountToDisplaySize(skippedSize), result.size(),
+				bySize.size() - skippedCount);
+		return result;
+	}
+
+	// the files, which are in the stored index, and whose size and modification time are the same as in its metadata
+	// are left, the new and changed ones (i.e. the ones to be hashed again) are right; files without metadata are
+	// only left, if the modification time of the index is trusted, and they were not modified after it
+	public synchronized static Pair<List<FileRecord>, List<FileRecord>> changedFiles(
+			final Map<String, FileRecord> fileList, final Map<String, Triple<String, Long, Long>> storedIndex,
+			final long indexModified, final boolean trustIndexTime) {
+		final List<FileRecord> unchanged = new ArrayList<>();
+		final List<FileRecord> changed = new ArrayList<>();
+		long skippedSize = 0L;
+		long trusted = 0L;
+		for (final FileRecord file : fileList.values()) {
+			final Triple<String, Long, Long> stored = storedIndex.get(file.getPath());
+			final boolean same;
+			if (stored == null) {
+				same = false;
+			} else if (stored.getMiddle() == null) {
+				same = trustIndexTime && file.getModified() <= indexModified;
+				trusted += same ? 1L : 0L;
+			} else {
+				same = stored.getMiddle() == file.getSize() && stored.getRight() == file.getModified();
+			}
+			if (same) {
+				unchanged.add(file);
+				skippedSize += file.getSize();
+			} else {
+				changed.add(file);
+			}
+		}
+		crawlerLogger.skipFiles(unchanged.size(), skippedSize);
+
+		LOG.info("{} files (with total size {}) skipped, because they did not change since indexing; {} files left",
+				unchanged.size(), FileUtils.byteCountToDisplaySize(skippedSize), changed.size());
+		if (trusted > 0L) {
+			LOG.warn("{} of the skipped files have no metadata, their digests are trusted based on the modification "
+					+ "time of the index", trusted);
+		}
+		return Pair.of(unchanged, changed);
+	}
+
+	public synchronized static Set<String> sampleCollisions(final Set<String> candidates,
+			final Map<String, FileRecord> fileList, final int sampleSize, final DeviceScheduler scheduler) {
+		final ConcurrentMap<String, List<String>> bySample = new ConcurrentHashMap<>((int) (candidates.size() * 1.5));
+		final Set<String> result = ConcurrentHashMap.newKeySet();
+
+		scheduler.forEach(candidates, Function.identity(), f -> fileList.get(f).getFileKey(),
+				f -> Math.min(fileList.get(f).getSize(), 3L * sampleSize), f -> {
+			final long size = fileList.get(f).getSize();
+			if (size <= 3L * sampleSize) {
+				// the samples would cover the whole file, let the full hashing decide
+				result.add(f);
+				return;
+			}
+			try {
+				bySample.computeIfAbsent(size + " *" + sampleDigest(new File(f), size, sampleSize),
+						k -> Collections.synchronizedList(new ArrayList<>(1))).add(f);
+			} catch (final IOException e) {
+				LOG.debug("{}: cannot sample file", f);
+				result.add(f);
+			}
+		});
+
+		long skippedCount = 0L;
+		long skippedSize = 0L;
+		for (final List<String> group : bySample.values()) {
+			if (group.size() > 1) {
+				result.addAll(group);
+			} else {
+				++skippedCount;
+				skippedSize += fileList.get(group.get(0)).getSize();
+			}
+		}
+		crawlerLogger.skipFiles(skippedCount, skippedSize);
+
+		LOG.info("{} files (with total size {}) skipped, because their {} byte samples are unique; {} files left",
+				skippedCount, FileUtils.byteCountToDisplaySize(skippedSize), sampleSize, result.size());
+		return result;
+	}
+
+	// the files, which cannot be indexed (e.g. unreadable ones), are passed to unindexed
+	public synchronized static long index(final Collection<FileRecord> fileList, final HashEngine hashEngine,
+			final DeviceScheduler scheduler, final Excludes excludes, final HashCache cache,
+			final List<BiConsumer<String, FileRecord>> sinks, final Consumer<String> unindexed) {
 
 		crawlerLogger.turnOffListing();
 
-		// we expect some collisions, and if possible, don't want to have expands on
-		// this Map
-		final ConcurrentMap<String, List<String>> result = new ConcurrentHashMap<>((int) (fileList.size() * 1.5));
+		final AtomicLong count = new AtomicLong(0L);
+		scheduler.forEach(fileList, FileRecord::getPath, FileRecord::getFileKey, FileRecord::getSize,
+				record -> indexFile(record, hashEngine, excludes, cache, sinks, unindexed, count));
+
+		crawlerLogger.stop();
+		crawlerLoggerThread.interrupt();
+
+		return count.get();
+	}
+
+	// the walker feeds the files directory by directory into a bounded queue, and they are hashed as soon as they
+	// arrive, i.e. the disks are not idle while the tree is still being listed; the entries, which are not listed or
+	// cannot be indexed, are passed to unindexed
+	public synchronized static long listAndIndex(final String root, final Excludes excludes,
+			final Excludes directoryExcludes, final boolean parallel, final HashEngine hashEngine,
+			final DeviceScheduler scheduler, final HashCache cache, final List<BiConsumer<String, FileRecord>> sinks,
+			final Consumer<String> unindexed) {
+		if (!new File(root).isAbsolute()) {
+			throw new IllegalArgumentException("Path must be absolute, it was: " + root);
+		}
+
+		final BlockingQueue<List<FileRecord>> queue = new ArrayBlockingQueue<>(PIPELINE_CAPACITY);
+		final AtomicLong listed = new AtomicLong(0L);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final Thread walker = new Thread(() -> {
+			try {
+				walk(root, excludes, directoryExcludes, parallel, files -> {
+					listed.addAndGet(files.size());
+					if (!put(queue, new ArrayList<>(files), cancelled)) {
+						throw new CancellationException("Listing cancelled");
+					}
+				}, unindexed, cancelled);
+			} catch (final CancellationException ce) {
+				LOG.debug("Listing of {} cancelled", root);
+			} finally {
+				crawlerLogger.turnOffListing();
+				put(queue, List.of(), cancelled); // end of the listing
+			}
+		}, "jDupPur-walker");
+		walker.setDaemon(true);
+		walker.start();
+
+		final AtomicLong count = new AtomicLong(0L);
+		boolean finished = false;
+		try {
+			scheduler.forEachStreamed(queue, FileRecord::getPath, FileRecord::getFileKey, FileRecord::getSize,
+					record -> indexFile(record, hashEngine, excludes, cache, sinks, unindexed, count));
+			finished = true;
+		} finally {
+			// the readers failed, i.e. nobody takes from the queue anymore: the walker is stopped, instead of it
+			// listing on (or being blocked on the full queue forever)
+			if (!finished) {
+				cancelled.set(true);
+				queue.clear();
+			}
+		}
+		LOG.info("{} files listed recursively in {}", listed.get(), root);
+
+		crawlerLogger.stop();
+		crawlerLoggerThread.interrupt();
 
-		jDupPur.conditionallyParallel(fileList.stream(), parallel)
-				.map(File::new)
+		return count.get();
+	}
+
+	// the queue is closed by the cancellation, i.e. nothing is put into it after that; false, if it is closed
+	private static boolean put(final BlockingQueue<List<FileRecord>> queue, final List<FileRecord> files,
+			final AtomicBoolean cancelled) {
+		try {
+			while (!cancelled.get()) {
+				if (queue.offer(files, 100L, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+			queue.clear();
+			return false;
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while listing", ie);
+		}
+	}
+
+	private static void indexFile(final FileRecord record, final HashEngine hashEngine, final Excludes excludes,
+			final HashCache cache, final List<BiConsumer<String, FileRecord>> sinks, final Consumer<String> unindexed,
+			final AtomicLong count) {
+		Stream.of(record)
 				.filter(FilePredicate.EXISTS)
-				.filter(FilePredicate.READABLE)
 				.filter(FilePredicate.NOT_SYMLINK)
 				.filter(FilePredicate.IS_FILE)
-				.filter(p -> {
-					for (final Pattern pattern : excludes) {
-						if (pattern.matcher(jDupPur.properAbsolutePath(p.getAbsolutePath())).matches()) {
-							return false;
+				.filter(r -> !excludes.matches(r.getPath()))
+				.forEach(r -> {
+					try {
+						final List<String> digests = cache.digests(r, hashEngine);
+						// one sink per hash function (e.g. an in-memory index and/or a streaming index writer)
+						for (int i = 0; i < digests.size(); ++i) {
+							sinks.get(i).accept(digests.get(i), r);
 						}
-					}
-					return true;
-				})
-				.forEach(f -> {
-					try (final InputStream is = FileUtils.openInputStream(f)) {
-						result.computeIfAbsent(digestFunction.apply(is), k -> new ArrayList<>())
-								.add(jDupPur.properAbsolutePath(f.getAbsolutePath()));
-						crawlerLogger.processed(jDupPur.properAbsolutePath(f.getAbsolutePath()));
-					} catch (FileNotFoundException fnfe) {
-						LOG.error("{}: file does not exist", jDupPur.properAbsolutePath(f.getAbsolutePath()));
+						count.incrementAndGet();
+						crawlerLogger.processed(r);
+					} catch (FileNotFoundException | NoSuchFileException fnfe) {
+						LOG.error("{}: file does not exist", r.getPath());
+						unindexed.accept(r.getPath());
 					} catch (IOException e) {
-						LOG.error("{}: cannot read file", jDupPur.properAbsolutePath(f.getAbsolutePath()));
+						LOG.error("{}: cannot read file", r.getPath());
+						unindexed.accept(r.getPath());
 					}
 				});
-
-		crawlerLogger.stop();
-		crawlerLoggerThread.interrupt();
-
-		return result;
 	}
 
-	public synchronized static Map<String, List<String>> reIndex(final List<String> indexAsList,
-			final Function<InputStream, String> digestFunction, final boolean parallel, final Set<Pattern> excludes) {
+	public synchronized static Map<String, List<String>> reIndex(final Map<String, List<String>> storedIndex,
+			final HashEngine hashEngine, final DeviceScheduler scheduler, final Excludes excludes,
+			final boolean parallel) {
 
-		MultiValuedMap<String, String> index = new ArrayListValuedHashMap<>();
-		index: for (final String indexEntry : indexAsList) {
-			final String[] entry = StringUtils.splitByWholeSeparator(indexEntry, " *", 2);
-			for (final Pattern pattern : excludes) {
-				if (pattern.matcher(entry[1]).matches()) {
-					continue index;
+		final List<Pair<String, String>> stored = new ArrayList<>();
+		for (final Entry<String, List<String>> storedEntry : storedIndex.entrySet()) {
+			for (final String file : storedEntry.getValue()) {
+				if (!excludes.matches(file)) {
+					stored.add(Pair.of(file, storedEntry.getKey()));
 				}
 			}
-			index.put(entry[0], entry[1]);
 		}
-		crawlerLogger.addFiles(index.values());
 
+		// every stored file is stat'ed once (concurrently, the stats are round trips on network shares), the record is
+		// used for the scheduling, for the logger, and for the checks
+		final List<Pair<FileRecord, String>> index = read(stored, parallel);
+		crawlerLogger.addFiles(index.stream().map(Pair::getLeft).collect(Collectors.toList()));
 		crawlerLogger.turnOffListing();
 
 		AtomicLong ok = new AtomicLong(0L);
 		AtomicLong fail = new AtomicLong(0L);
-		Map<String, List<String>> reIndex = new ConcurrentHashMap<>();
+		final DigestTable reIndex = new DigestTable();
 
-		jDupPur.conditionallyParallel(index.entries().stream(), parallel)
-				.map(e -> Pair.of(new File(e.getValue()), e.getKey()))
+		// by sizes, i.e. the biggest files are read first on the devices without seeks
+		scheduler.forEach(index, p -> p.getLeft().getPath(), p -> p.getLeft().getFileKey(),
+				p -> p.getLeft().getSize(), indexEntry -> Stream.of(indexEntry)
 				.filter(p -> FilePredicate.EXISTS.test(p.getLeft()))
-				.filter(p -> FilePredicate.READABLE.test(p.getLeft()))
 				.filter(p -> FilePredicate.NOT_SYMLINK.test(p.getLeft()))
 				.filter(p -> FilePredicate.IS_FILE.test(p.getLeft()))
 				.map(p -> {
-					try (final InputStream is = FileUtils.openInputStream(p.getLeft())) {
-						final String digest = digestFunction.apply(is);
-						crawlerLogger.processed(jDupPur.properAbsolutePath(p.getLeft().getAbsolutePath()));
+					try {
+						final String digest = hashEngine.digest(p.getLeft().toPath());
+						crawlerLogger.processed(p.getLeft());
 						return Pair.of(p.getLeft(), Pair.of(digest, p.getRight()));
-					} catch (FileNotFoundException fnfe) {
-						LOG.error("{}: File does not exist", jDupPur.properAbsolutePath(p.getLeft().getAbsolutePath()));
+					} catch (FileNotFoundException | NoSuchFileException fnfe) {
+						LOG.error("{}: File does not exist", p.getLeft().getPath());
 						return null;
 					} catch (IOException e) {
-						LOG.error("{}: Could not read file", jDupPur.properAbsolutePath(p.getLeft().getAbsolutePath()));
+						LOG.error("{}: Could not read file", p.getLeft().getPath());
 						return null;
 					}
 				})
+				.filter(Objects::nonNull)
 				.forEach(p -> {
 					if (p.getRight().getLeft().equalsIgnoreCase(p.getRight().getRight())) {
-						LOG.info("{}: OK", jDupPur.properAbsolutePath(p.getLeft().getAbsolutePath()));
+						LOG.info("{}: OK", p.getLeft().getPath());
 						ok.incrementAndGet();
-						reIndex.computeIfAbsent(p.getRight().getLeft(), k -> new ArrayList<>())
-								.add(jDupPur.properAbsolutePath(p.getLeft().getAbsolutePath()));
+						reIndex.accept(p.getRight().getLeft(), p.getLeft().getPath());
 					} else {
-						LOG.error("{}: FAIL", jDupPur.properAbsolutePath(p.getLeft().getAbsolutePath()));
+						LOG.error("{}: FAIL", p.getLeft().getPath());
 						fail.incrementAndGet();
 					}
-				});
+				}));
 
 		crawlerLogger.stop();
 		crawlerLoggerThread.interrupt();
@@ -196,6 +375,116 @@ public final class Crawler {
 		return reIndex;
 	}
 
+	private static List<Pair<FileRecord, String>> read(final List<Pair<String, String>> stored,
+			final boolean parallel) {
+		final ForkJoinPool pool = new ForkJoinPool(parallel ? Runtime.getRuntime().availableProcessors() : 1);
+		try {
+			return pool.submit(() -> stored.parallelStream()
+					.map(p -> Pair.of(FileRecord.read(p.getLeft()), p.getRight()))
+					.collect(Collectors.toList()))
+					.join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static final class Lister extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final Excludes excludes;
+		private final Excludes directoryExcludes;
+		private final Consumer<Collection<FileRecord>> sink;
+		private final Consumer<String> unlisted;
+		private final AtomicBoolean cancelled;
+
+		private Lister(final Path directory, final Excludes excludes, final Excludes directoryExcludes,
+				final Consumer<Collection<FileRecord>> sink, final Consumer<String> unlisted,
+				final AtomicBoolean cancelled) {
+			this.directory = directory;
+			this.excludes = excludes;
+			this.directoryExcludes = directoryExcludes;
+			this.sink = sink;
+			this.unlisted = unlisted;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled.get()) {
+				return;
+			}
+			LOG.trace("Listing {}", directory);
+			final List<FileRecord> directResults = new ArrayList<>();
+			final List<Lister> subdirectories = new ArrayList<>();
+			try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (final Path path : stream) {
+					final FileRecord record;
+					try {
+						record = FileRecord.of(path,
+								Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+					} catch (final IOException e) {
+						LOG.trace("{}: does not exist", path);
+						continue;
+					}
+					// unreadable files are not checked here (it would be another call to the filesystem for each
+					// file), they are reported when they are read
+					if (!FilePredicate.NOT_SYMLINK.test(record)) {
+						unlisted.accept(record.getPath());
+					} else if (record.getType() == Type.DIRECTORY) {
+						// excluded directories are pruned, i.e. their subtrees are not even listed
+						if (directoryExcludes.matches(record.getPath())) {
+							LOG.trace("{}: is an excluded directory", record.getPath());
+							unlisted.accept(record.getPath());
+						} else {
+							subdirectories.add(new Lister(path, excludes, directoryExcludes, sink, unlisted,
+									cancelled));
+						}
+					} else if (record.getType() == Type.FILE) {
+						if (excludes.matches(record.getPath())) {
+							LOG.trace("{}: is excluded", record.getPath());
+							unlisted.accept(record.getPath());
+						} else {
+							directResults.add(record);
+						}
+					} else {
+						unlisted.accept(record.getPath());
+					}
+				}
+			} catch (final IOException | DirectoryIteratorException e) {
+				LOG.debug("{}: cannot list directory", directory);
+				unlisted.accept(jDupPur.properAbsolutePath(directory.toAbsolutePath().toString()));
+				return;
+			}
+			LOG.trace("{} real files and {} directories in {}", directResults.size(), subdirectories.size(), directory);
+			crawlerLogger.addFiles(directResults);
+			if (!directResults.isEmpty()) {
+				sink.accept(directResults);
+			}
+
+			invokeAll(subdirectories);
+		}
+	}
+
+	private static String sampleDigest(final File file, final long size, final int sampleSize) throws IOException {
+		final MessageDigest digest = DigestUtils.getMd5Digest();
+		final ByteBuffer buffer = ByteBuffer.allocate(sampleSize);
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (final long offset : new long[] { 0L, (size - sampleSize) / 2L, size - sampleSize }) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				digest.update(buffer);
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
 	public static final class CrawlerLogger implements Runnable {
 
 		private static final Logger LOG = LogManager.getLogger(CrawlerLogger.class);
@@ -207,29 +496,23 @@ public final class Crawler {
 		private final AtomicLong cumulativeSize = new AtomicLong(0L);
 		private final AtomicLong processedCumulativeSize = new AtomicLong(0L);
 		private final long interval;
-		private long startedProcessingAt = System.nanoTime();
+		private volatile long startedProcessingAt = System.nanoTime();
 
 		private CrawlerLogger(final long interval) {
 			this.interval = interval * 1000L;
 		}
 
-		public void addFiles(final Collection<String> fileNames) {
+		public void addFiles(final Collection<FileRecord> files) {
 			if (listing.get()) {
-				long count = fileNames.stream()
-						.map(File::new)
-						.filter(FilePredicate.EXISTS)
-						.filter(FilePredicate.READABLE)
-						.filter(FilePredicate.NOT_SYMLINK)
-						.filter(FilePredicate.IS_FILE)
-						.count();
-				long size = fileNames.stream()
-						.map(File::new)
-						.filter(FilePredicate.EXISTS)
-						.filter(FilePredicate.READABLE)
-						.filter(FilePredicate.NOT_SYMLINK)
-						.filter(FilePredicate.IS_FILE)
-						.mapToLong(FileUtils::sizeOf)
-						.sum();
+				long count = 0L;
+				long size = 0L;
+				for (final FileRecord file : files) {
+					if (FilePredicate.EXISTS.test(file) && FilePredicate.NOT_SYMLINK.test(file)
+							&& FilePredicate.IS_FILE.test(file)) {
+						++count;
+						size += file.getSize();
+					}
+				}
 				fileCount.addAndGet(count);
 				cumulativeSize.addAndGet(size);
 				LOG.debug("{} files (with cumulative size {}) added to the logger", count,
@@ -239,22 +522,31 @@ public final class Crawler {
 			}
 		}
 
+		public void skipFiles(final long count, final long size) {
+			if (listing.get()) {
+				fileCount.addAndGet(-count);
+				cumulativeSize.addAndGet(-size);
+				LOG.debug("{} files (with cumulative size {}) removed from the logger", count,
+						FileUtils.byteCountToDisplaySize(size));
+			} else {
+				throw new IllegalStateException("Files can only be removed from the logger in listing state");
+			}
+		}
+
 		public void turnOffListing() {
 			LOG.info("Listing ended, counted {} files (with total size {})", fileCount.get(),
 					FileUtils.byteCountToDisplaySize(cumulativeSize.get()));
 			listing.getAndSet(false);
 		}
 
-		public void processed(String fileName) {
-			if (!listing.get()) {
-				long size = FileUtils.sizeOf(new File(fileName));
-				processedFileCount.getAndIncrement();
-				processedCumulativeSize.addAndGet(size);
-				LOG.trace("File {} (with size {}) marked as processed", fileName,
-						FileUtils.byteCountToDisplaySize(size));
-			} else {
-				throw new IllegalStateException("Files can only be marked as processed in non-listing state");
+		// files may be processed while the listing is still going on (i.e. when listing and indexing overlap)
+		public void processed(final FileRecord file) {
+			if (processedFileCount.getAndIncrement() == 0L) {
+				startedProcessingAt = System.nanoTime();
 			}
+			processedCumulativeSize.addAndGet(file.getSize());
+			LOG.trace("File {} (with size {}) marked as processed", file.getPath(),
+					FileUtils.byteCountToDisplaySize(file.getSize()));
 		}
 
 		public void stop() {
@@ -280,14 +572,26 @@ public final class Crawler {
 			while (!stopped.get()) {
 				try {
 					Thread.sleep(interval);
-					if (listing.get()) {
+					if (listing.get() && processedFileCount.get() == 0L) {
 						LOG.info("Still listing, currently @ {} files (with total size {}), elapsed time: {}",
 								fileCount.get(), FileUtils.byteCountToDisplaySize(cumulativeSize.get()),
 								jDupPur.humanReadableTime(System.nanoTime() - start));
+					} else if (listing.get()) {
+						if (!indexingOngoing) {
+							indexingOngoing = true;
+							start = startedProcessingAt;
+						}
+						// the total is still growing, thus there is no estimation
+						LOG.info(
+								"Still listing and indexing, currently @ {} files out of {} listed so far (with processed size {} out of {}), elapsed time: {}",
+								processedFileCount.get(), fileCount.get(),
+								FileUtils.byteCountToDisplaySize(processedCumulativeSize.get()),
+								FileUtils.byteCountToDisplaySize(cumulativeSize.get()),
+								jDupPur.humanReadableTime(System.nanoTime() - start));
 					} else {
 						if (!indexingOngoing) {
 							indexingOngoing = true;
-							start = System.nanoTime();
+							start = processedFileCount.get() > 0L ? startedProcessingAt : System.nanoTime();
 							startedProcessingAt = start;
 						}
 						if (LOG.isInfoEnabled()) {
@@ -0,0 +1,385 @@
+package xyz.kovacs.jduppur;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public final class DeviceScheduler {
+
+	private static final Logger LOG = LogManager.getLogger(DeviceScheduler.class);
+
+	private static final String UNKNOWN_DEVICE = "unknown device";
+	private static final int STREAM_CAPACITY = 256; // in work units
+	private static final int UNIT_FILES = 64;
+	private static final long UNIT_WEIGHT = 16L * 1024L * 1024L; // in bytes
+	private static final long FILE_WEIGHT = 4096L; // opening a file costs about as much as reading a block of it
+
+	private final boolean parallel;
+	private final Map<FileStore, Integer> overrides = new HashMap<>();
+	// devices (by their st_dev) and directories (only for files without a device in their key) -> file store
+	private final ConcurrentMap<String, Optional<FileStore>> deviceStores = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, FileStore> directoryStores = new ConcurrentHashMap<>();
+	private final ConcurrentMap<FileStore, Boolean> rotational = new ConcurrentHashMap<>();
+
+	// the file stores of the overridden mount points are determined once
+	private DeviceScheduler(final boolean parallel, final Map<String, Integer> overrides) {
+		this.parallel = parallel;
+		for (final Entry<String, Integer> override : overrides.entrySet()) {
+			try {
+				this.overrides.put(Files.getFileStore(Paths.get(override.getKey())), override.getValue());
+			} catch (final IOException | InvalidPathException e) {
+				LOG.debug("{}: cannot determine file store", override.getKey());
+			}
+		}
+	}
+
+	public static DeviceScheduler of(final boolean parallel, final Map<String, Integer> overrides) {
+		return new DeviceScheduler(parallel, overrides);
+	}
+
+	// the file keys (see FileRecord) tell the devices apart without asking the filesystem, they may be null
+	public <T> void forEach(final Collection<T> items, final Function<T, String> pathOf,
+			final Function<T, String> fileKeyOf, final ToLongFunction<T> sizeOf, final Consumer<T> action) {
+		final Map<String, List<T>> byDevice = new HashMap<>();
+		final Map<String, FileStore> stores = new HashMap<>();
+		for (final T item : items) {
+			final FileStore store = fileStore(pathOf.apply(item), fileKeyOf.apply(item));
+			final String device = store == null ? UNKNOWN_DEVICE : store.toString();
+			stores.putIfAbsent(device, store);
+			byDevice.computeIfAbsent(device, k -> new ArrayList<>()).add(item);
+		}
+
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		final List<Future<?>> workers = new ArrayList<>();
+		for (final Entry<String, List<T>> device : byDevice.entrySet()) {
+			final FileStore store = stores.get(device.getKey());
+			final int concurrency = concurrency(store);
+			LOG.info("Reading {} files from {} with {} thread(s)", device.getValue().size(), device.getKey(),
+					concurrency);
+			final Queue<List<T>> queue = new ConcurrentLinkedQueue<>();
+			if (seeking(store)) {
+				inChunks(localityOrder(device.getValue(), pathOf, fileKeyOf)).forEach(u -> queue.add(u.getRight()));
+			} else {
+				byteWeighted(device.getValue(), sizeOf).forEach(u -> queue.add(u.getRight()));
+			}
+			for (int i = 0; i < concurrency; ++i) {
+				workers.add(executor.submit(() -> {
+					List<T> unit;
+					while ((unit = queue.poll()) != null) {
+						unit.forEach(action);
+					}
+				}));
+			}
+		}
+
+		try {
+			for (final Future<?> worker : workers) {
+				worker.get();
+			}
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the readers", ie);
+		} catch (final ExecutionException ee) {
+			throw new IllegalStateException("Reader failed", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// items arrive in batches while they are still being produced (an empty batch marks the end), they are split by
+	// devices and handed over in work units to the readers of the devices; the readers of a device are started, when
+	// its first item arrives; rotational devices are read batch by batch in the order of the inodes, since the whole
+	// list is not known, while on the others the heaviest waiting unit is read first
+	public <T> void forEachStreamed(final BlockingQueue<List<T>> batches, final Function<T, String> pathOf,
+			final Function<T, String> fileKeyOf, final ToLongFunction<T> sizeOf, final Consumer<T> action) {
+		final Map<String, DeviceQueue<T>> devices = new HashMap<>();
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		final List<Future<?>> workers = new ArrayList<>();
+		try {
+			List<T> batch;
+			while (!(batch = batches.take()).isEmpty()) {
+				final Map<String, List<T>> byDevice = new HashMap<>();
+				final Map<String, FileStore> stores = new HashMap<>();
+				for (final T item : batch) {
+					final FileStore store = fileStore(pathOf.apply(item), fileKeyOf.apply(item));
+					final String device = store == null ? UNKNOWN_DEVICE : store.toString();
+					stores.putIfAbsent(device, store);
+					byDevice.computeIfAbsent(device, k -> new ArrayList<>()).add(item);
+				}
+				for (final Entry<String, List<T>> device : byDevice.entrySet()) {
+					final DeviceQueue<T> queue = devices.computeIfAbsent(device.getKey(), d -> {
+						final int concurrency = concurrency(stores.get(d));
+						LOG.info("Reading files from {} with {} thread(s)", d, concurrency);
+						final DeviceQueue<T> deviceQueue = new DeviceQueue<>(concurrency, seeking(stores.get(d)));
+						for (int i = 0; i < concurrency; ++i) {
+							workers.add(executor.submit(() -> consume(deviceQueue, action)));
+						}
+						return deviceQueue;
+					});
+					for (final Pair<Long, List<T>> unit : queue.seeking ? inChunks(inodeOrder(device.getValue(), fileKeyOf))
+							: byteWeighted(device.getValue(), sizeOf)) {
+						queue.put(unit);
+					}
+				}
+			}
+			for (final DeviceQueue<T> device : devices.values()) {
+				device.finish();
+			}
+			for (final Future<?> worker : workers) {
+				worker.get();
+			}
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the readers", ie);
+		} catch (final ExecutionException ee) {
+			throw new IllegalStateException("Reader failed", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// a failed reader keeps on draining its queue, otherwise the producer would be blocked forever
+	private static <T> Void consume(final DeviceQueue<T> queue, final Consumer<T> action)
+			throws InterruptedException {
+		RuntimeException failure = null;
+		List<T> unit;
+		while (!(unit = queue.take()).isEmpty()) {
+			if (failure == null) {
+				try {
+					unit.forEach(action);
+				} catch (final RuntimeException e) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return null;
+	}
+
+	// the biggest files first, so no reader is stuck with one of them at the end of the run, while the others are
+	// idle; small files are packed into units of similar weight, so they don't cost a hand-over each
+	private static <T> List<Pair<Long, List<T>>> byteWeighted(final List<T> items, final ToLongFunction<T> sizeOf) {
+		final List<T> sorted = new ArrayList<>(items);
+		sorted.sort(Comparator.comparingLong(sizeOf).reversed());
+		final List<Pair<Long, List<T>>> result = new ArrayList<>();
+		List<T> unit = new ArrayList<>();
+		long weight = 0L;
+		for (final T item : sorted) {
+			unit.add(item);
+			weight += Math.max(sizeOf.applyAsLong(item), 0L) + FILE_WEIGHT;
+			if (weight >= UNIT_WEIGHT || unit.size() >= UNIT_FILES) {
+				result.add(Pair.of(weight, unit));
+				unit = new ArrayList<>();
+				weight = 0L;
+			}
+		}
+		if (!unit.isEmpty()) {
+			result.add(Pair.of(weight, unit));
+		}
+		LOG.trace("{} files packed into {} work units", sorted.size(), result.size());
+		return result;
+	}
+
+	// keeps the order of the items, e.g. the seek-minimizing one
+	private static <T> List<Pair<Long, List<T>>> inChunks(final List<T> items) {
+		final List<Pair<Long, List<T>>> result = new ArrayList<>();
+		for (int i = 0; i < items.size(); i += UNIT_FILES) {
+			result.add(Pair.of(0L, items.subList(i, Math.min(i + UNIT_FILES, items.size()))));
+		}
+		return result;
+	}
+
+	// the file store of a device is determined from the first of its files, i.e. not once per directory (which would
+	// be a realpath, a parse of the mount table, and a stat of every ancestor each time, i.e. round trips on NFS)
+	private FileStore fileStore(final String path, final String fileKey) {
+		final String device = keyField(fileKey, "dev");
+		if (device == null) {
+			return directoryStore(path);
+		}
+		return deviceStores.computeIfAbsent(device, d -> Optional.ofNullable(directoryStore(path))).orElse(null);
+	}
+
+	// e.g. "(dev=803,ino=1234)" on Unix-like systems; null, if the key does not have the field
+	private static String keyField(final String fileKey, final String name) {
+		for (final String field : StringUtils.split(StringUtils.defaultString(fileKey), "(),")) {
+			if (field.startsWith(name + "=")) {
+				return field.substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+
+	// files without an inode in their key keep their relative order
+	private static <T> List<T> inodeOrder(final List<T> items, final Function<T, String> fileKeyOf) {
+		final List<T> sorted = new ArrayList<>(items);
+		sorted.sort(Comparator.comparingLong(item -> keyInode(fileKeyOf.apply(item))));
+		return sorted;
+	}
+
+	private static long keyInode(final String fileKey) {
+		try {
+			return Long.parseLong(StringUtils.defaultString(keyField(fileKey, "ino"), "0"));
+		} catch (final NumberFormatException nfe) {
+			return 0L;
+		}
+	}
+
+	private FileStore directoryStore(final String path) {
+		final String directory = StringUtils.defaultString(new File(path).getParent(), path);
+		return directoryStores.computeIfAbsent(directory, d -> {
+			try {
+				return Files.getFileStore(Paths.get(d));
+			} catch (final IOException | InvalidPathException e) {
+				LOG.debug("{}: cannot determine file store", d);
+				return null;
+			}
+		});
+	}
+
+	private int concurrency(final FileStore store) {
+		if (store != null) {
+			final Integer override = override(store);
+			if (override != null) {
+				return override;
+			}
+			if (isRotational(store)) {
+				return 1;
+			}
+		}
+		return parallel ? Runtime.getRuntime().availableProcessors() : 1;
+	}
+
+	// devices, which are rotational or overridden to be read by a single thread, are read in seek-minimizing order
+	private boolean seeking(final FileStore store) {
+		if (store == null) {
+			return false;
+		}
+		final Integer override = override(store);
+		return override != null ? override == 1 : isRotational(store);
+	}
+
+	private Integer override(final FileStore store) {
+		return overrides.get(store);
+	}
+
+	// on HDDs the inode number (taken from the file key) is a good proxy for the physical location (at least on ext4
+	// and NTFS), and keeping the files of a directory together lets the small ones be read in one sweep of the head;
+	// files without a key are only kept together by their directories
+	private static <T> List<T> localityOrder(final List<T> items, final Function<T, String> pathOf,
+			final Function<T, String> fileKeyOf) {
+		final Map<String, Long> directoryInodes = new HashMap<>();
+		final List<Triple<T, String, Long>> located = new ArrayList<>(items.size());
+		for (final T item : items) {
+			final String path = pathOf.apply(item);
+			final String directory = StringUtils.substringBeforeLast(path, "/");
+			final long inode = keyInode(fileKeyOf.apply(item));
+			directoryInodes.merge(directory, inode, Math::min);
+			located.add(Triple.of(item, directory, inode));
+		}
+		located.sort(Comparator.<Triple<T, String, Long>>comparingLong(t -> directoryInodes.get(t.getMiddle()))
+				.thenComparing(Triple::getMiddle)
+				.thenComparingLong(Triple::getRight));
+		LOG.debug("{} files ordered by physical locality in {} directories", located.size(), directoryInodes.size());
+		return located.stream().map(Triple::getLeft).collect(Collectors.toList());
+	}
+
+	private boolean isRotational(final FileStore store) {
+		return rotational.computeIfAbsent(store, DeviceScheduler::readRotational);
+	}
+
+	// only works on Linux, everything else (incl. network shares) is considered non-rotational
+	private static boolean readRotational(final FileStore store) {
+		if (!store.name().startsWith("/dev/")) {
+			return false;
+		}
+		try {
+			final String device = Paths.get(store.name()).toRealPath().getFileName().toString();
+			Path sysfs = Paths.get("/sys/class/block", device).toRealPath();
+			if (!Files.exists(sysfs.resolve("queue/rotational"))) {
+				sysfs = sysfs.getParent(); // partitions don't have a queue, their disks have
+			}
+			final boolean rotational = "1"
+					.equals(new String(Files.readAllBytes(sysfs.resolve("queue/rotational")), StandardCharsets.US_ASCII)
+							.trim());
+			LOG.debug("{} is {}", store, rotational ? "rotational" : "non-rotational");
+			return rotational;
+		} catch (final IOException e) {
+			LOG.debug("{}: cannot determine whether it is rotational", store);
+			return false;
+		}
+	}
+
+	// hands the work units of a device over to its readers: in the order of arrival on seeking devices, otherwise
+	// the heaviest waiting unit first; the producer is blocked, if the readers are too far behind
+	private static final class DeviceQueue<T> {
+
+		private final BlockingQueue<Pair<Long, List<T>>> units;
+		private final Semaphore capacity = new Semaphore(STREAM_CAPACITY);
+		private final int concurrency;
+		private final boolean seeking;
+
+		private DeviceQueue(final int concurrency, final boolean seeking) {
+			this.units = seeking ? new LinkedBlockingQueue<>()
+					: new PriorityBlockingQueue<>(STREAM_CAPACITY, (a, b) -> Long.compare(b.getLeft(), a.getLeft()));
+			this.concurrency = concurrency;
+			this.seeking = seeking;
+		}
+
+		private void put(final Pair<Long, List<T>> unit) throws InterruptedException {
+			capacity.acquire();
+			units.put(unit);
+		}
+
+		// one end marker per reader, they are the lightest units, i.e. they are taken after all the others
+		private void finish() throws InterruptedException {
+			for (int i = 0; i < concurrency; ++i) {
+				units.put(Pair.of(Long.MIN_VALUE, List.of()));
+			}
+		}
+
+		private List<T> take() throws InterruptedException {
+			final List<T> unit = units.take().getRight();
+			if (!unit.isEmpty()) {
+				capacity.release();
+			}
+			return unit;
+		}
+	}
+}
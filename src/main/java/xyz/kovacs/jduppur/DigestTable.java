@@ -0,0 +1,328 @@
+package xyz.kovacs.jduppur;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.ObjIntConsumer;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.StringUtils;
+
+/*
+ * An in-memory index of a single hash function, filled concurrently by the indexing threads, and read as a map of
+ * digests to paths afterwards. The digests are kept as raw bytes in primitive arrays, and the paths as ids into a
+ * path store, i.e. there are no objects per file; the map view creates the strings only when they are asked for.
+ *
+ * Inserts are lock-striped: the table consists of STRIPES independent open-addressing tables, and a digest belongs
+ * to the stripe chosen by its leading bits.
+ */
+public final class DigestTable extends AbstractMap<String, List<String>> implements BiConsumer<String, String> {
+
+	private static final int STRIPES = 64;
+
+	private final PathStore paths;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private volatile String tag = null;
+	private volatile int digestLength = -1;
+
+	public DigestTable() {
+		this(new PathStore());
+	}
+
+	// the tables of the different hash functions of an index may share their paths
+	public DigestTable(final PathStore paths) {
+		this.paths = paths;
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	@Override
+	public void accept(final String digest, final String path) {
+		final byte[] bytes = encode(digest);
+		stripe(bytes).add(bytes, hash(bytes), paths.add(path));
+	}
+
+	public PathStore getPaths() {
+		return paths;
+	}
+
+	// every entry with its digest and the id of its path, without creating the strings of the paths
+	public void forEachEntry(final ObjIntConsumer<String> action) {
+		for (final Stripe stripe : stripes) {
+			for (int group = 0; group < stripe.groupCount(); ++group) {
+				final String digest = tag + Hex.encodeHexString(stripe.digest(group, digestLength));
+				for (final int pathId : stripe.pathIds(group)) {
+					action.accept(digest, pathId);
+				}
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		long result = 0L;
+		for (final Stripe stripe : stripes) {
+			result += stripe.groupCount();
+		}
+		return (int) Math.min(result, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public List<String> get(final Object key) {
+		final byte[] bytes = decode(key);
+		if (bytes == null) {
+			return null;
+		}
+		final Stripe stripe = stripe(bytes);
+		final int group = stripe.find(bytes, hash(bytes));
+		return group < 0 ? null : paths(stripe.pathIds(group));
+	}
+
+	// the views are not updated by the inserts, which are done after their iterators were created
+	@Override
+	public Set<Entry<String, List<String>>> entrySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public int size() {
+				return DigestTable.this.size();
+			}
+
+			@Override
+			public Iterator<Entry<String, List<String>>> iterator() {
+				return groups((stripe, group) -> Map.entry(
+						tag + Hex.encodeHexString(stripe.digest(group, digestLength)), paths(stripe.pathIds(group))));
+			}
+		};
+	}
+
+	// only the digests, i.e. the strings of the paths are not created
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public int size() {
+				return DigestTable.this.size();
+			}
+
+			@Override
+			public boolean contains(final Object key) {
+				return containsKey(key);
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				return groups((stripe, group) -> tag + Hex.encodeHexString(stripe.digest(group, digestLength)));
+			}
+		};
+	}
+
+	private <T> Iterator<T> groups(final BiFunction<Stripe, Integer, T> mapper) {
+		return new Iterator<>() {
+
+			private int stripe = 0;
+			private int group = 0;
+			private int groupCount = stripes[0].groupCount();
+
+			@Override
+			public boolean hasNext() {
+				while (group >= groupCount && stripe < STRIPES - 1) {
+					++stripe;
+					group = 0;
+					groupCount = stripes[stripe].groupCount();
+				}
+				return group < groupCount;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return mapper.apply(stripes[stripe], group++);
+			}
+		};
+	}
+
+	// every digest of a table has to be of the same hash function, the first one determines the tag and the length
+	private byte[] encode(final String digest) {
+		final String digestTag = digest.contains(":") ? StringUtils.substringBefore(digest, ":") + ":"
+				: StringUtils.EMPTY;
+		final byte[] bytes;
+		try {
+			bytes = Hex.decodeHex(StringUtils.removeStart(digest, digestTag));
+		} catch (final DecoderException de) {
+			throw new IllegalArgumentException("Digest is not hexadecimal: " + digest, de);
+		}
+		if (digestLength < 0) {
+			synchronized (this) {
+				if (digestLength < 0) {
+					tag = digestTag;
+					digestLength = bytes.length;
+				}
+			}
+		}
+		if (!tag.equals(digestTag) || digestLength != bytes.length) {
+			throw new IllegalArgumentException("Digests of an index must be of the same hash function: " + digest);
+		}
+		return bytes;
+	}
+
+	private List<String> paths(final int[] pathIds) {
+		final List<String> result = new ArrayList<>(pathIds.length);
+		for (final int pathId : pathIds) {
+			result.add(paths.path(pathId));
+		}
+		return result;
+	}
+
+	private byte[] decode(final Object key) {
+		if (digestLength < 0 || !(key instanceof String) || !StringUtils.startsWith((String) key, tag)) {
+			return null;
+		}
+		try {
+			final byte[] bytes = Hex.decodeHex(StringUtils.removeStart((String) key, tag));
+			return bytes.length == digestLength ? bytes : null;
+		} catch (final DecoderException de) {
+			return null;
+		}
+	}
+
+	private Stripe stripe(final byte[] digest) {
+		return stripes[(int) (hash(digest) >>> 58)]; // the top 6 bits for the 64 stripes
+	}
+
+	// digests are (more or less) uniformly distributed already, their leading bytes are only mixed for the short ones
+	private static long hash(final byte[] digest) {
+		long result = 0L;
+		for (int i = 0; i < Math.min(digest.length, 8); ++i) {
+			result = (result << 8) | (digest[i] & 0xFFL);
+		}
+		result *= 0x9E3779B97F4A7C15L;
+		return result ^ (result >>> 32);
+	}
+
+	/*
+	 * groups: the digests (digestLength bytes each), the last entry and the number of entries of every group
+	 * entries: the previous entry of the same group (or -1), and the id of the entry's path in the path store
+	 * slots: group + 1 for every occupied slot, 0 for the empty ones; at most half of them are occupied
+	 */
+	private static final class Stripe {
+
+		private int[] slots = new int[16];
+		private byte[] digests = new byte[0];
+		private int[] lastEntries = new int[8];
+		private int[] groupSizes = new int[8];
+		private int groupCount = 0;
+
+		private int[] previousEntries = new int[8];
+		private int[] pathIds = new int[8];
+		private int entryCount = 0;
+
+		private synchronized void add(final byte[] digest, final long hash, final int pathId) {
+			int group = find(digest, hash);
+			if (group < 0) {
+				group = addGroup(digest, hash);
+			}
+
+			if (entryCount == previousEntries.length) {
+				previousEntries = Arrays.copyOf(previousEntries, grow(entryCount));
+				pathIds = Arrays.copyOf(pathIds, previousEntries.length);
+			}
+			pathIds[entryCount] = pathId;
+			previousEntries[entryCount] = groupSizes[group] == 0 ? -1 : lastEntries[group];
+			lastEntries[group] = entryCount;
+			++groupSizes[group];
+			++entryCount;
+		}
+
+		private synchronized int find(final byte[] digest, final long hash) {
+			final int mask = slots.length - 1;
+			for (int slot = (int) hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+				final int group = slots[slot] - 1;
+				if (Arrays.equals(digests, group * digest.length, (group + 1) * digest.length, digest, 0,
+						digest.length)) {
+					return group;
+				}
+			}
+			return -1;
+		}
+
+		private int addGroup(final byte[] digest, final long hash) {
+			if (groupCount == lastEntries.length) {
+				lastEntries = Arrays.copyOf(lastEntries, grow(groupCount));
+				groupSizes = Arrays.copyOf(groupSizes, lastEntries.length);
+			}
+			if ((groupCount + 1) * digest.length > digests.length) {
+				digests = Arrays.copyOf(digests, lastEntries.length * digest.length);
+			}
+			System.arraycopy(digest, 0, digests, groupCount * digest.length, digest.length);
+			final int group = groupCount++;
+			if (2 * groupCount > slots.length) {
+				rehash(digest.length);
+			} else {
+				insert(slots, hash, group);
+			}
+			return group;
+		}
+
+		private void rehash(final int digestLength) {
+			final int[] rehashed = new int[2 * slots.length];
+			for (int group = 0; group < groupCount; ++group) {
+				insert(rehashed, hash(Arrays.copyOfRange(digests, group * digestLength, (group + 1) * digestLength)),
+						group);
+			}
+			slots = rehashed;
+		}
+
+		private static void insert(final int[] slots, final long hash, final int group) {
+			final int mask = slots.length - 1;
+			int slot = (int) hash & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = group + 1;
+		}
+
+		private synchronized int groupCount() {
+			return groupCount;
+		}
+
+		private synchronized byte[] digest(final int group, final int digestLength) {
+			return Arrays.copyOfRange(digests, group * digestLength, (group + 1) * digestLength);
+		}
+
+		// in the order of the inserts
+		private synchronized int[] pathIds(final int group) {
+			final int[] result = new int[groupSizes[group]];
+			int i = result.length;
+			for (int entry = lastEntries[group]; entry >= 0; entry = previousEntries[entry]) {
+				result[--i] = pathIds[entry];
+			}
+			return result;
+		}
+
+		private static int grow(final int length) {
+			if (length >= Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("Too many entries in the in-memory index");
+			}
+			return (int) Math.min(2L * length, Integer.MAX_VALUE - 8);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package xyz.kovacs.jduppur;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// content hashes of directories derived from the names and digests of their children, computed bottom-up from an
+// index on the trie of its paths, i.e. directories with the same hash have the same files (recursively) according to
+// the index
+public final class DirectoryHashes {
+
+	private static final Logger LOG = LogManager.getLogger(DirectoryHashes.class);
+
+	private final MessageDigest sha256;
+	private final PathStore paths;
+	// directory -> [sum of the children's hashes (two lanes), number of children, number of files in the subtree];
+	// sums are order-independent, thus the children of a directory can be added in any order and nothing but the
+	// accumulators is kept in memory
+	private final Map<Integer, long[]> accumulators = new HashMap<>();
+	private final Map<String, String> hashes = new HashMap<>();
+	private final Map<String, Long> fileCounts = new HashMap<>();
+	private int root = -1;
+
+	private DirectoryHashes(final PathStore paths) {
+		this.paths = paths;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae); // safe to ignore, every JVM has to support SHA-256
+		}
+	}
+
+	// the paths of an in-memory index are in its path store already, the other indexes are put into one; the
+	// unindexed paths (e.g. excluded files, or the ones skipped by the prefilters) make their directories unique,
+	// i.e. those do not have the same hash as directories, which lack them
+	public static DirectoryHashes of(final Map<String, List<String>> index, final Collection<String> unindexed) {
+		if (index instanceof DigestTable) {
+			final DigestTable table = (DigestTable) index;
+			final DirectoryHashes result = new DirectoryHashes(table.getPaths());
+			table.forEachEntry((digest, file) -> result.add("f", digest, file));
+			return result.finish(unindexed);
+		}
+		final DirectoryHashes result = new DirectoryHashes(new PathStore());
+		for (final Entry<String, List<String>> entry : index.entrySet()) {
+			for (final String path : entry.getValue()) {
+				result.add("f", entry.getKey(), result.paths.add(path));
+			}
+		}
+		return result.finish(unindexed);
+	}
+
+	public static DirectoryHashes of(final File index, final Collection<String> unindexed) throws IOException {
+		final DirectoryHashes result = new DirectoryHashes(new PathStore());
+		try (final IndexReader reader = new IndexReader(index)) {
+			Pair<String, List<String>> group;
+			while ((group = reader.nextGroup()) != null) {
+				for (final String path : group.getValue()) {
+					result.add("f", group.getKey(), result.paths.add(path));
+				}
+			}
+		}
+		return result.finish(unindexed);
+	}
+
+	// only directories at or below the common root of the indexed files are hashed, the ones above it may contain
+	// anything besides the index
+	public Map<String, String> getHashes() {
+		return Collections.unmodifiableMap(hashes);
+	}
+
+	// the number of indexed files in the subtree of the directory
+	public long getFileCount(final String directory) {
+		return fileCounts.getOrDefault(directory, 0L);
+	}
+
+	public String getRoot() {
+		return root < 0 ? null : paths.path(root);
+	}
+
+	private void add(final String type, final String hash, final int file) {
+		final int directory = paths.parent(file);
+		if (directory < 0) {
+			return; // not in any directory
+		}
+		// the first file sets the root, and it stays -1, once the files turn out to have no common directory
+		root = accumulators.isEmpty() ? directory : root < 0 ? -1 : paths.commonAncestor(root, directory);
+		accumulate(directory, type, paths.name(file), hash, 1L);
+	}
+
+	private DirectoryHashes finish(final Collection<String> unindexed) {
+		// after the indexed files, i.e. the root is already set by them; the path makes the placeholder unique
+		for (final String path : unindexed) {
+			add("u", path, paths.add(path));
+		}
+		if (accumulators.isEmpty()) {
+			return this;
+		}
+		// deepest directories first, so every directory is complete, when it is added to its parent
+		final TreeMap<Integer, Set<Integer>> byDepth = new TreeMap<>(Collections.reverseOrder());
+		for (final int directory : accumulators.keySet()) {
+			byDepth.computeIfAbsent(paths.depth(directory), k -> new HashSet<>()).add(directory);
+		}
+		Entry<Integer, Set<Integer>> level;
+		while ((level = byDepth.pollFirstEntry()) != null) {
+			for (final int directory : level.getValue()) {
+				final long[] accumulator = accumulators.remove(directory);
+				final String hash = String.format("%016x%016x%08x", accumulator[0], accumulator[1], accumulator[2]);
+				final String path = paths.path(directory);
+				hashes.put(path, hash);
+				fileCounts.put(path, accumulator[3]);
+				final int parent = paths.parent(directory);
+				if (directory != root && parent >= 0) {
+					accumulate(parent, "d", paths.name(directory), hash, accumulator[3]);
+					byDepth.computeIfAbsent(level.getKey() - 1, k -> new HashSet<>()).add(parent);
+				}
+			}
+		}
+		LOG.debug("{} directories hashed under {}", hashes.size(), getRoot());
+		return this;
+	}
+
+	private void accumulate(final int directory, final String type, final String name, final String hash,
+			final long files) {
+		sha256.reset();
+		final ByteBuffer child = ByteBuffer
+				.wrap(sha256.digest((type + "\0" + name + "\0" + hash).getBytes(StandardCharsets.UTF_8)));
+		final long[] accumulator = accumulators.computeIfAbsent(directory, k -> new long[4]);
+		accumulator[0] += child.getLong();
+		accumulator[1] += child.getLong();
+		++accumulator[2];
+		accumulator[3] += files;
+	}
+}
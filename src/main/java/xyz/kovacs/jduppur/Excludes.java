@@ -0,0 +1,74 @@
+package xyz.kovacs.jduppur;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// exclusion regexes compiled once into a single alternation, i.e. a path is matched once instead of once per regex
+public final class Excludes {
+
+	private static final Logger LOG = LogManager.getLogger(Excludes.class);
+
+	private static final String SEPARATOR = " * ";
+	private static final String NOTHING = ":"; // placeholder of Cli, when no regex was given
+
+	private final List<Pattern> patterns;
+	private final Pattern combined;
+
+	private Excludes(final List<Pattern> patterns, final Pattern combined) {
+		this.patterns = patterns;
+		this.combined = combined;
+	}
+
+	public static Excludes of(final String regexes) {
+		final List<String> distinct = regexes == null ? List.of()
+				: Arrays.stream(StringUtils.splitByWholeSeparator(regexes, SEPARATOR))
+						.filter(r -> !NOTHING.equals(r))
+						.distinct()
+						.collect(Collectors.toList());
+		final List<Pattern> patterns = distinct.stream().map(Pattern::compile).collect(Collectors.toList());
+		if (patterns.size() < 2) {
+			return new Excludes(patterns, patterns.isEmpty() ? null : patterns.get(0));
+		}
+
+		// back references are numbered globally in an alternation, they would point to the wrong groups
+		if (distinct.stream().anyMatch(r -> r.matches(".*\\\\(\\d|k<).*"))) {
+			LOG.debug("Exclusion regexes with back references are matched one by one");
+			return new Excludes(patterns, null);
+		}
+		try {
+			return new Excludes(patterns,
+					Pattern.compile(distinct.stream().map(r -> "(?:" + r + ")").collect(Collectors.joining("|"))));
+		} catch (final PatternSyntaxException pse) {
+			LOG.debug("Exclusion regexes cannot be combined, they are matched one by one");
+			return new Excludes(patterns, null);
+		}
+	}
+
+	public boolean isEmpty() {
+		return patterns.isEmpty();
+	}
+
+	public boolean matches(final String path) {
+		if (combined != null) {
+			return combined.matcher(path).matches();
+		}
+		for (final Pattern pattern : patterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return patterns.stream().map(Pattern::pattern).collect(Collectors.joining(SEPARATOR));
+	}
+}
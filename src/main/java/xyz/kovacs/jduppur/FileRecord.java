@@ -0,0 +1,93 @@
+package xyz.kovacs.jduppur;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.lang3.StringUtils;
+
+// the metadata of a file read once (with a single stat call), and passed along instead of asking the filesystem again
+public final class FileRecord {
+
+	public enum Type {
+		FILE, DIRECTORY, SYMLINK, OTHER, MISSING
+	}
+
+	private final Path file;
+	private final String path;
+	private final Type type;
+	private final long size;
+	private final long modified;
+	private final String fileKey;
+
+	private FileRecord(final Path file, final String path, final Type type, final long size, final long modified,
+			final String fileKey) {
+		this.file = file;
+		this.path = path;
+		this.type = type;
+		this.size = size;
+		this.modified = modified;
+		this.fileKey = fileKey;
+	}
+
+	public static FileRecord of(final Path path, final BasicFileAttributes attributes) {
+		final Type type;
+		if (attributes.isSymbolicLink()) {
+			type = Type.SYMLINK;
+		} else if (attributes.isDirectory()) {
+			type = Type.DIRECTORY;
+		} else if (attributes.isRegularFile()) {
+			type = Type.FILE;
+		} else {
+			type = Type.OTHER;
+		}
+		return new FileRecord(path, jDupPur.properAbsolutePath(path.toAbsolutePath().toString()), type,
+				attributes.size(),
+				attributes.lastModifiedTime().toMillis(), attributes.fileKey() == null ? "-"
+						: StringUtils.deleteWhitespace(attributes.fileKey().toString()));
+	}
+
+	// files, which cannot be stat'ed (or whose name cannot be encoded on this platform), are recorded as missing
+	public static FileRecord read(final String path) {
+		try {
+			final Path file = Paths.get(path);
+			return of(file, Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+		} catch (final IOException | InvalidPathException e) {
+			return new FileRecord(null, path, Type.MISSING, 0L, 0L, "-");
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	// the path as it was listed, i.e. it is not encoded again from the name (which may be lossy on some platforms)
+	public Path toPath() {
+		return file;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public String getFileKey() {
+		return fileKey;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
@@ -0,0 +1,250 @@
+package xyz.kovacs.jduppur;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public final class HashCache {
+
+	private static final Logger LOG = LogManager.getLogger(HashCache.class);
+
+	private static final String HEADER = "# jDupPur hash cache: ";
+	private static final String JOURNAL_HEADER = "# jDupPur journal: ";
+	private static final long JOURNAL_SYNC_INTERVAL = 1000L; // in milliseconds
+
+	private final File cacheFile;
+	private final String algorithm;
+	private final ConcurrentMap<String, CacheEntry> previous = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CacheEntry> current = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong(0L);
+	private final AtomicLong misses = new AtomicLong(0L);
+
+	private final ConcurrentMap<String, CacheEntry> journaled = new ConcurrentHashMap<>();
+	private File journalFile = null;
+	private FileOutputStream journalStream = null;
+	private BufferedWriter journal = null;
+	private long journalSynced = 0L;
+
+	private HashCache(final File cacheFile, final String algorithm) {
+		this.cacheFile = cacheFile;
+		this.algorithm = algorithm;
+	}
+
+	public static HashCache disabled(final List<String> algorithms) {
+		return new HashCache(null, String.join(",", algorithms));
+	}
+
+	public static HashCache load(final String cacheFileName, final List<String> algorithms) throws IOException {
+		final String algorithm = String.join(",", algorithms);
+		final HashCache cache = new HashCache(new File(cacheFileName), algorithm);
+		if (!cache.cacheFile.exists()) {
+			LOG.info("Hash cache {} does not exist yet, it will be created", cacheFileName);
+			return cache;
+		}
+
+		final List<String> lines = FileUtils.readLines(cache.cacheFile, StandardCharsets.UTF_8);
+		if (lines.isEmpty() || !lines.get(0).equals(HEADER + algorithm)) {
+			LOG.info("Hash cache {} was not built with {}, discarding it", cacheFileName, algorithm);
+			return cache;
+		}
+		for (final String line : lines.subList(1, lines.size())) {
+			final String[] entry = StringUtils.splitByWholeSeparator(line, " *", 2);
+			if (!isValid(entry)) {
+				LOG.debug("Invalid entry in hash cache {}: {}", cacheFileName, line);
+				continue;
+			}
+			final String[] metadata = StringUtils.split(entry[0], ' ');
+			cache.previous.put(entry[1], new CacheEntry(Long.parseLong(metadata[1]), Long.parseLong(metadata[2]),
+					metadata[3], metadata[0]));
+		}
+		LOG.info("{} entries loaded from hash cache {}", cache.previous.size(), cacheFileName);
+		return cache;
+	}
+
+	// the cache and the journal may be edited by hand, or torn (e.g. by a full disk), such entries are skipped
+	private static boolean isValid(final String[] entry) {
+		if (entry.length < 2) {
+			return false;
+		}
+		final String[] metadata = StringUtils.split(entry[0], ' ');
+		return metadata.length >= 4 && NumberUtils.isDigits(metadata[1]) && metadata[1].length() < 19
+				&& NumberUtils.isDigits(StringUtils.removeStart(metadata[2], "-")) && metadata[2].length() < 19;
+	}
+
+	// every digest is appended to the journal, as soon as it is computed; an existing journal (i.e. of an interrupted
+	// run) is loaded first, and its digests are reused the same way as the ones of the cache
+	public HashCache withJournal(final String journalFileName) throws IOException {
+		journalFile = new File(journalFileName);
+		boolean torn = false;
+		if (journalFile.exists()) {
+			final String content = FileUtils.readFileToString(journalFile, StandardCharsets.UTF_8);
+			final List<String> lines = new ArrayList<>(List.of(StringUtils.split(content, "\r\n")));
+			// the last line is torn, if the run was interrupted while it was written
+			torn = !content.isEmpty() && !content.endsWith("\n");
+			if (torn) {
+				lines.remove(lines.size() - 1);
+			}
+			if (lines.isEmpty() || !lines.get(0).equals(JOURNAL_HEADER + algorithm)) {
+				LOG.warn("Journal {} was not written with {}, it is started anew", journalFileName, algorithm);
+			} else {
+				for (final String line : lines.subList(1, lines.size())) {
+					final String[] entry = StringUtils.splitByWholeSeparator(line, " *", 2);
+					if (!isValid(entry)) {
+						LOG.debug("Invalid entry in journal {}: {}", journalFileName, line);
+						continue;
+					}
+					final String[] metadata = StringUtils.split(entry[0], ' ');
+					journaled.put(entry[1], new CacheEntry(Long.parseLong(metadata[1]), Long.parseLong(metadata[2]),
+							metadata[3], metadata[0]));
+				}
+				LOG.info("{} entries loaded from journal {}, the indexing is resumed", journaled.size(),
+						journalFileName);
+			}
+		}
+
+		journalStream = new FileOutputStream(journalFile, !journaled.isEmpty());
+		journal = new BufferedWriter(new OutputStreamWriter(journalStream, StandardCharsets.UTF_8));
+		if (journaled.isEmpty()) {
+			journal.write(JOURNAL_HEADER + algorithm);
+			journal.newLine();
+		} else if (torn) {
+			journal.newLine();
+		}
+		journal.flush();
+		return this;
+	}
+
+	// the journal is only needed until the index is complete
+	public void deleteJournal() throws IOException {
+		if (journal == null) {
+			return;
+		}
+		journal.close();
+		Files.deleteIfExists(journalFile.toPath());
+		LOG.debug("Journal {} deleted", journalFile);
+	}
+
+	public boolean isEnabled() {
+		return cacheFile != null || journal != null;
+	}
+
+	// the metadata of the record (read during listing) is used, the file is not stat'ed again
+	public List<String> digests(final FileRecord file, final HashEngine hashEngine) throws IOException {
+		if (!isEnabled()) {
+			return hashEngine.digests(file.toPath());
+		}
+
+		final String path = file.getPath();
+		final CacheEntry resumed = journaled.get(path);
+		if (resumed != null && resumed.matches(file)) {
+			hits.incrementAndGet();
+			current.put(path, resumed);
+			LOG.trace("{}: digest reused from journal", path);
+			return List.of(StringUtils.split(resumed.digests, ','));
+		}
+		final CacheEntry cached = previous.get(path);
+		if (cached != null && cached.matches(file)) {
+			hits.incrementAndGet();
+			current.put(path, cached);
+			journal(path, cached);
+			LOG.trace("{}: digest reused from hash cache", path);
+			return List.of(StringUtils.split(cached.digests, ','));
+		}
+
+		misses.incrementAndGet();
+		final List<String> digests = hashEngine.digests(file.toPath());
+		final CacheEntry computed = new CacheEntry(file.getSize(), file.getModified(), file.getFileKey(),
+				String.join(",", digests));
+		current.put(path, computed);
+		journal(path, computed);
+		return digests;
+	}
+
+	// every line is flushed into the OS, thus it survives a crash of the JVM; it is synced onto the disk at most once
+	// a second, thus a crash of the machine costs at most the last second
+	private synchronized void journal(final String path, final CacheEntry entry) throws IOException {
+		if (journal == null) {
+			return;
+		}
+		journal.write(entry + " *" + path);
+		journal.newLine();
+		journal.flush();
+		final long now = System.currentTimeMillis();
+		if (now - journalSynced >= JOURNAL_SYNC_INTERVAL) {
+			journalStream.getFD().sync();
+			journalSynced = now;
+		}
+	}
+
+	public void save(final String root) throws IOException {
+		if (!isEnabled()) {
+			return;
+		}
+		LOG.info("{} digests reused, {} digests computed", hits.get(), misses.get());
+		if (cacheFile == null) {
+			return;
+		}
+
+		// entries under the indexed root, which were not seen now, are stale (deleted or excluded files)
+		final String prefix = StringUtils.appendIfMissing(jDupPur.properAbsolutePath(root), "/");
+		final List<String> output = new ArrayList<>(current.size() + 1);
+		output.add(HEADER + algorithm);
+		for (final Entry<String, CacheEntry> entry : previous.entrySet()) {
+			if (!entry.getKey().startsWith(prefix) && !current.containsKey(entry.getKey())) {
+				output.add(entry.getValue() + " *" + entry.getKey());
+			}
+		}
+		for (final Entry<String, CacheEntry> entry : current.entrySet()) {
+			output.add(entry.getValue() + " *" + entry.getKey());
+		}
+
+		final File temporary = new File(cacheFile.getAbsolutePath() + ".tmp");
+		FileUtils.writeLines(temporary, StandardCharsets.UTF_8.name(), output);
+		Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("{} entries written into hash cache {}", output.size() - 1, cacheFile);
+	}
+
+	private static final class CacheEntry {
+
+		private final long size;
+		private final long modified;
+		private final String fileKey;
+		private final String digests;
+
+		private CacheEntry(final long size, final long modified, final String fileKey, final String digests) {
+			this.size = size;
+			this.modified = modified;
+			this.fileKey = fileKey;
+			this.digests = digests;
+		}
+
+		private boolean matches(final FileRecord file) {
+			return size == file.getSize() && modified == file.getModified()
+					&& Objects.equals(fileKey, file.getFileKey());
+		}
+
+		@Override
+		public String toString() {
+			return digests + " " + size + " " + modified + " " + fileKey;
+		}
+	}
+}
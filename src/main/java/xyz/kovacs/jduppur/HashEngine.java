@@ -0,0 +1,292 @@
+package xyz.kovacs.jduppur;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.Blake3;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+public final class HashEngine {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final long MAPPING_THRESHOLD = 64L * 1024L * 1024L;
+	private static final long MAPPING_CHUNK = 256L * 1024L * 1024L;
+	// no practical collisions are known for these (unlike for MD5 and SHA-1), only their digests are ever trusted
+	private static final Set<String> COLLISION_RESISTANT = Set.of("SHA-256", "SHA-384", "SHA-512", "SHA-512/256",
+			"SHA3-224", "SHA3-256", "SHA3-384", "SHA3-512", "BLAKE3");
+
+	private final String tag;
+	private final int digestLength;
+	private final boolean collisionResistant;
+	private final boolean memoryMapped;
+	private final ThreadLocal<Hasher[]> hashers;
+	private final ThreadLocal<ByteBuffer> buffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	private HashEngine(final String tag, final int digestLength, final boolean collisionResistant,
+			final boolean memoryMapped, final List<Supplier<Hasher>> hasherFactories) {
+		this.tag = tag;
+		this.digestLength = digestLength;
+		this.collisionResistant = collisionResistant;
+		this.memoryMapped = memoryMapped;
+		this.hashers = ThreadLocal
+				.withInitial(() -> hasherFactories.stream().map(Supplier::get).toArray(Hasher[]::new));
+	}
+
+	public static HashEngine of(final String algorithm, final boolean memoryMapped) {
+		return of(List.of(algorithm), memoryMapped);
+	}
+
+	public static HashEngine of(final List<String> algorithms, final boolean memoryMapped) {
+		if (algorithms.isEmpty()) {
+			throw new IllegalArgumentException("At least one hash function is needed");
+		}
+		final List<Supplier<Hasher>> hasherFactories = new ArrayList<>(algorithms.size());
+		for (final String algorithm : algorithms) {
+			hasherFactories.add(hasherFactory(algorithm));
+		}
+		final String algorithm = algorithms.get(0).toUpperCase(Locale.ENGLISH);
+		return new HashEngine(tag(algorithm), digestLength(algorithm), COLLISION_RESISTANT.contains(algorithm),
+				memoryMapped, hasherFactories);
+	}
+
+	// the format of the digests of the (first) hash function, see the hashers below
+	private static String tag(final String algorithm) {
+		switch (algorithm) {
+		case "CRC32C":
+			return "crc32c:";
+		case "XXH64":
+		case "XXHASH64":
+			return "xxh64:";
+		case "BLAKE3":
+			return "blake3:";
+		default:
+			return "";
+		}
+	}
+
+	// in hexadecimal characters, 0 if the provider does not tell it (i.e. no digest has the format)
+	private static int digestLength(final String algorithm) {
+		switch (algorithm) {
+		case "CRC32C":
+			return 8;
+		case "XXH64":
+		case "XXHASH64":
+			return 16;
+		case "BLAKE3":
+			return 64;
+		default:
+			try {
+				return 2 * MessageDigest.getInstance(algorithm).getDigestLength();
+			} catch (final NoSuchAlgorithmException nsae) {
+				return 0;
+			}
+		}
+	}
+
+	private static Supplier<Hasher> hasherFactory(final String algorithm) {
+		switch (algorithm.toUpperCase(Locale.ENGLISH)) {
+		case "CRC32C":
+			return Crc32cHasher::new;
+		case "XXH64":
+		case "XXHASH64":
+			return Xxh64Hasher::new;
+		case "BLAKE3":
+			return Blake3Hasher::new;
+		default:
+			try {
+				MessageDigest.getInstance(algorithm);
+			} catch (final NoSuchAlgorithmException nsae) {
+				throw new IllegalArgumentException("Unrecognised hash function: " + algorithm, nsae);
+			}
+			return () -> new MessageDigestHasher(algorithm);
+		}
+	}
+
+	// whether the digest is of the (first) hash function of the engine, based on its tag and its length
+	public boolean hasFormat(final String digest) {
+		return digest.length() == tag.length() + digestLength && digest.startsWith(tag)
+				&& digest.indexOf(':') == tag.length() - 1;
+	}
+
+	// whether a match of the digest can be trusted without comparing the files byte-by-byte
+	public boolean isCollisionResistant(final String digest) {
+		return collisionResistant && hasFormat(digest);
+	}
+
+	public String digest(final Path file) throws IOException {
+		return digests(file).get(0);
+	}
+
+	public List<String> digests(final Path file) throws IOException {
+		final Hasher[] fileHashers = hashers.get();
+		for (final Hasher hasher : fileHashers) {
+			hasher.reset();
+		}
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (memoryMapped && size >= MAPPING_THRESHOLD) {
+				for (long position = 0L; position < size; position += MAPPING_CHUNK) {
+					update(fileHashers,
+							channel.map(MapMode.READ_ONLY, position, Math.min(MAPPING_CHUNK, size - position)));
+				}
+			} else {
+				final ByteBuffer buffer = buffers.get();
+				buffer.clear();
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					update(fileHashers, buffer);
+					buffer.clear();
+				}
+			}
+		}
+		final List<String> result = new ArrayList<>(fileHashers.length);
+		for (final Hasher hasher : fileHashers) {
+			result.add(hasher.finish());
+		}
+		return result;
+	}
+
+	// every hasher is fed with the same bytes, thus the file is read only once for all hash functions
+	private static void update(final Hasher[] fileHashers, final ByteBuffer buffer) {
+		final int start = buffer.position();
+		for (final Hasher hasher : fileHashers) {
+			buffer.position(start);
+			hasher.update(buffer);
+		}
+	}
+
+	private interface Hasher {
+
+		void reset();
+
+		void update(ByteBuffer buffer);
+
+		String finish();
+	}
+
+	private static final class MessageDigestHasher implements Hasher {
+
+		private final MessageDigest digest;
+
+		private MessageDigestHasher(final String algorithm) {
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (final NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException(nsae); // safe to ignore, we already tested it in #hasherFactory(String)
+			}
+		}
+
+		@Override
+		public void reset() {
+			digest.reset();
+		}
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			digest.update(buffer);
+		}
+
+		@Override
+		public String finish() {
+			return Hex.encodeHexString(digest.digest());
+		}
+	}
+
+	private static final class Crc32cHasher implements Hasher {
+
+		private final CRC32C checksum = new CRC32C();
+
+		@Override
+		public void reset() {
+			checksum.reset();
+		}
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			checksum.update(buffer);
+		}
+
+		@Override
+		public String finish() {
+			return String.format("crc32c:%08x", checksum.getValue());
+		}
+	}
+
+	// the following ones are only accepting arrays, hence direct and mapped buffers are copied chunk-wise
+	private abstract static class ArrayHasher implements Hasher {
+
+		private final byte[] chunk = new byte[64 * 1024];
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			if (buffer.hasArray()) {
+				update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+				return;
+			}
+			while (buffer.hasRemaining()) {
+				final int length = Math.min(chunk.length, buffer.remaining());
+				buffer.get(chunk, 0, length);
+				update(chunk, 0, length);
+			}
+		}
+
+		protected abstract void update(byte[] bytes, int offset, int length);
+	}
+
+	private static final class Xxh64Hasher extends ArrayHasher {
+
+		private final StreamingXXHash64 hash = XXHashFactory.fastestInstance().newStreamingHash64(0L);
+
+		@Override
+		public void reset() {
+			hash.reset();
+		}
+
+		@Override
+		protected void update(final byte[] bytes, final int offset, final int length) {
+			hash.update(bytes, offset, length);
+		}
+
+		@Override
+		public String finish() {
+			return String.format("xxh64:%016x", hash.getValue());
+		}
+	}
+
+	private static final class Blake3Hasher extends ArrayHasher {
+
+		private final Blake3 hash = Blake3.initHash();
+
+		@Override
+		public void reset() {
+			hash.reset();
+		}
+
+		@Override
+		protected void update(final byte[] bytes, final int offset, final int length) {
+			hash.update(bytes, offset, length);
+		}
+
+		@Override
+		public String finish() {
+			return "blake3:" + Hex.encodeHexString(hash.doFinalize(32));
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package xyz.kovacs.jduppur;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// reads a hash-sorted text index group by group, i.e. only one hash group is kept in memory at a time; comment lines
+// (i.e. the metadata) are skipped; binary indexes (which are always sorted by hashes) are read through their mapping
+public final class IndexReader implements Closeable {
+
+	private static final Logger LOG = LogManager.getLogger(IndexReader.class);
+
+	private final File input;
+	private final BufferedReader reader;
+	private final Iterator<Entry<String, List<String>>> groups;
+	private String[] lookahead;
+	private long count = 0L;
+
+	public IndexReader(final File input) throws IOException {
+		this.input = input;
+		if (BinaryIndex.isBinary(input)) {
+			this.reader = null;
+			this.groups = BinaryIndex.open(input).entrySet().iterator();
+		} else {
+			this.reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8);
+			this.groups = null;
+			this.lookahead = readEntry();
+		}
+	}
+
+	public static boolean isHashSorted(final File input) throws IOException {
+		if (BinaryIndex.isBinary(input)) {
+			return true;
+		}
+		try (final BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+			String previous = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(IndexWriter.METADATA)) {
+					continue;
+				}
+				final String digest = StringUtils.substringBefore(line, " *");
+				if (previous != null && previous.compareTo(digest) > 0) {
+					LOG.debug("{} is not sorted by hashes: {} is after {}", input, digest, previous);
+					return false;
+				}
+				previous = digest;
+			}
+		}
+		return true;
+	}
+
+	// the root written with the metadata, null for indexes without it
+	public static String root(final File input) throws IOException {
+		if (BinaryIndex.isBinary(input)) {
+			return null;
+		}
+		try (final BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+			final String line = reader.readLine();
+			return line != null && line.startsWith(IndexWriter.ROOT_HEADER)
+					? line.substring(IndexWriter.ROOT_HEADER.length())
+					: null;
+		}
+	}
+
+	// path -> [digest, size, modification time]; size and modification time are null, if the entry has no metadata
+	public static Map<String, Triple<String, Long, Long>> readEntries(final File input) throws IOException {
+		final Map<String, Triple<String, Long, Long>> result = new HashMap<>();
+		try (final BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+			String previous = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith(IndexWriter.METADATA)) {
+					final String[] entry = StringUtils.splitByWholeSeparator(line, " *", 2);
+					result.put(entry[1], Triple.of(entry[0], null, null));
+					previous = entry[1];
+					continue;
+				}
+				final String[] metadata = StringUtils.split(line.substring(IndexWriter.METADATA.length()), ' ');
+				// comment lines, which are not metadata (e.g. the root, or edited by hand), are skipped
+				if (previous != null && metadata.length == 2 && isLong(metadata[0]) && isLong(metadata[1])) {
+					result.put(previous, Triple.of(result.get(previous).getLeft(), Long.parseLong(metadata[0]),
+							Long.parseLong(metadata[1])));
+				}
+				previous = null;
+			}
+		}
+		return result;
+	}
+
+	// i.e. parseable by Long.parseLong (the values of the metadata are far below 19 digits)
+	private static boolean isLong(final String value) {
+		return value.length() < 19 && NumberUtils.isDigits(StringUtils.removeStart(value, "-"));
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	// null, if the index is exhausted
+	public Pair<String, List<String>> nextGroup() throws IOException {
+		if (groups != null) {
+			if (!groups.hasNext()) {
+				return null;
+			}
+			final Entry<String, List<String>> group = groups.next();
+			count += group.getValue().size();
+			return Pair.of(group.getKey(), group.getValue());
+		}
+		if (lookahead == null) {
+			return null;
+		}
+		final String digest = lookahead[0];
+		final List<String> files = new ArrayList<>(1);
+		while (lookahead != null && lookahead[0].equals(digest)) {
+			files.add(lookahead[1]);
+			lookahead = readEntry();
+		}
+		if (lookahead != null && lookahead[0].compareTo(digest) < 0) {
+			throw new IllegalStateException(input + " is not sorted by hashes: " + lookahead[0] + " is after " + digest);
+		}
+		return Pair.of(digest, files);
+	}
+
+	private String[] readEntry() throws IOException {
+		String line;
+		do {
+			line = reader.readLine();
+		} while (line != null && line.startsWith(IndexWriter.METADATA));
+		if (line == null) {
+			return null;
+		}
+		++count;
+		return StringUtils.splitByWholeSeparator(line, " *", 2);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package xyz.kovacs.jduppur;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// with metadata, every entry is followed by a comment line with the size and the modification time of the file, and
+// the index starts with a comment line with its root; comment lines are ignored by sha512sum and alike;
+// the index is written into a temporary file next to the output, which replaces the output only when it is closed,
+// i.e. an index updated in place is not lost, if the update is interrupted
+public final class IndexWriter implements BiConsumer<String, String>, Closeable {
+
+	private static final Logger LOG = LogManager.getLogger(IndexWriter.class);
+
+	private static final int SPILL_THRESHOLD = 1_000_000;
+	private static final int MERGE_FAN_IN = 64; // open runs at once, far below the usual limit of open files
+	static final String ROOT_HEADER = "# jDupPur index of ";
+	static final String METADATA = "# ";
+	private static final String METADATA_SEPARATOR = "\0"; // in buffered lines, paths cannot contain it
+
+	private final File output;
+	private final File temporary;
+	private final Path runDirectory;
+	private final int sort;
+	private final long budget;
+	private final String root;
+	private final List<String> buffer = new ArrayList<>();
+	private long buffered = 0L;
+	private final List<Path> runs = new ArrayList<>();
+	private final BufferedWriter unsorted;
+	private long count = 0L;
+
+	public IndexWriter(final File output, final int sort) throws IOException {
+		this(output, sort, Long.MAX_VALUE);
+	}
+
+	// the budget (in bytes) limits the memory of the sort buffer besides its number of lines
+	public IndexWriter(final File output, final int sort, final long budget) throws IOException {
+		this(output, sort, budget, null);
+	}
+
+	// the metadata is written, if the root is given
+	public IndexWriter(final File output, final int sort, final long budget, final String root) throws IOException {
+		this(output, sort, budget, root, null);
+	}
+
+	// the sorted runs are spilled next to the output, unless a directory is given for them
+	public IndexWriter(final File output, final int sort, final long budget, final String root,
+			final File runDirectory) throws IOException {
+		this.output = output;
+		this.runDirectory = (runDirectory == null ? output.getAbsoluteFile().getParentFile() : runDirectory).toPath();
+		this.temporary = temporary(output);
+		// an interrupted run does not leave its temporary files behind
+		temporary.deleteOnExit();
+		this.sort = sort;
+		this.budget = budget;
+		this.root = root;
+		this.unsorted = sort == 0 ? Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8) : null;
+		if (unsorted != null) {
+			writeHeader(unsorted);
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void accept(final String digest, final String path) {
+		write(digest, path, null);
+	}
+
+	public void accept(final String digest, final FileRecord record) {
+		write(digest, record.getPath(), record.getSize() + " " + record.getModified());
+	}
+
+	private synchronized void write(final String digest, final String path, final String metadata) {
+		++count;
+		try {
+			final String suffix = root == null || metadata == null ? "" : METADATA_SEPARATOR + metadata;
+			if (sort == 0) {
+				writeLine(unsorted, digest + " *" + path + suffix);
+				return;
+			}
+			// sorting on path is done on flipped lines, and they are flipped back when written into the output; the
+			// metadata is a suffix, which does not change the order, since the paths are unique
+			final String line = (sort == 1 ? digest + " *" + path : path + " *" + digest) + suffix;
+			buffer.add(line);
+			buffered += footprint(line);
+			if (buffer.size() >= SPILL_THRESHOLD || buffered >= budget) {
+				spill();
+			}
+		} catch (final IOException ie) {
+			throw new UncheckedIOException(ie);
+		}
+	}
+
+	// the temporary files of a killed run (e.g. of a resumed one) are only found by their names, which are derived
+	// from the output
+	public static void deleteStale(final File output, final File runDirectory) throws IOException {
+		Files.deleteIfExists(temporary(output).toPath());
+		final File directory = runDirectory == null ? output.getAbsoluteFile().getParentFile() : runDirectory;
+		try (final DirectoryStream<Path> stale = Files.newDirectoryStream(directory.toPath(),
+				path -> path.getFileName().toString().startsWith(runPrefix(output))
+						&& path.getFileName().toString().endsWith(".run"))) {
+			for (final Path run : stale) {
+				Files.deleteIfExists(run);
+				LOG.debug("Stale sorted run {} deleted", run);
+			}
+		}
+	}
+
+	private static File temporary(final File output) {
+		return new File(output.getAbsolutePath() + ".tmp");
+	}
+
+	private static String runPrefix(final File output) {
+		return output.getName() + ".";
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			write();
+		} finally {
+			Files.deleteIfExists(temporary.toPath());
+		}
+	}
+
+	private void write() throws IOException {
+		if (sort == 0) {
+			unsorted.close();
+			replaceOutput();
+			return;
+		}
+
+		Collections.sort(buffer);
+		if (runs.isEmpty()) {
+			try (final BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+				writeHeader(writer);
+				for (final String line : buffer) {
+					writeLine(writer, line);
+				}
+			}
+			buffer.clear();
+			replaceOutput();
+			return;
+		}
+
+		spill();
+		try {
+			// with many runs, they are merged into longer ones first, in as many passes as needed
+			while (runs.size() > MERGE_FAN_IN) {
+				mergePass();
+			}
+			LOG.debug("Merging {} sorted runs into {}", runs.size(), output);
+			try (final BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+				writeHeader(writer);
+				merge(runs, writer, true);
+			}
+		} finally {
+			for (final Path run : runs) {
+				Files.deleteIfExists(run);
+			}
+			runs.clear();
+		}
+		replaceOutput();
+	}
+
+	// the merged runs are replaced by the longer one right away, so they are cleaned up even if the pass fails
+	private void mergePass() throws IOException {
+		final List<Path> inputs = new ArrayList<>(runs);
+		LOG.debug("Merging {} sorted runs in groups of {}", inputs.size(), MERGE_FAN_IN);
+		for (int i = 0; i < inputs.size(); i += MERGE_FAN_IN) {
+			final List<Path> group = inputs.subList(i, Math.min(i + MERGE_FAN_IN, inputs.size()));
+			if (group.size() == 1) {
+				continue;
+			}
+			final Path run = createRun();
+			runs.add(run);
+			try (final BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+				merge(group, writer, false);
+			}
+			runs.removeAll(group);
+			for (final Path merged : group) {
+				Files.delete(merged);
+			}
+		}
+	}
+
+	// the lines of intermediate runs are written as they are, only the output gets the final form of the lines
+	private void merge(final List<Path> inputs, final BufferedWriter writer, final boolean toOutput)
+			throws IOException {
+		final List<BufferedReader> readers = new ArrayList<>(inputs.size());
+		try {
+			final PriorityQueue<Pair<String, BufferedReader>> heads = new PriorityQueue<>(
+					Comparator.comparing(Pair::getLeft));
+			for (final Path input : inputs) {
+				final BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+				readers.add(reader);
+				final String line = reader.readLine();
+				if (line != null) {
+					heads.add(Pair.of(line, reader));
+				}
+			}
+			while (!heads.isEmpty()) {
+				final Pair<String, BufferedReader> head = heads.poll();
+				if (toOutput) {
+					writeLine(writer, head.getLeft());
+				} else {
+					writer.write(head.getLeft());
+					writer.newLine();
+				}
+				final String line = head.getRight().readLine();
+				if (line != null) {
+					heads.add(Pair.of(line, head.getRight()));
+				}
+			}
+		} finally {
+			for (final BufferedReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	private void replaceOutput() throws IOException {
+		Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(buffer);
+		final Path run = createRun();
+		runs.add(run);
+		Files.write(run, buffer, StandardCharsets.UTF_8);
+		LOG.debug("{} sorted lines spilled into {}", buffer.size(), run);
+		buffer.clear();
+		buffered = 0L;
+	}
+
+	// the runs are not in the (possibly memory-backed) temporary directory, they are there to save memory
+	private Path createRun() throws IOException {
+		final Path run = Files.createTempFile(runDirectory, runPrefix(output), ".run");
+		run.toFile().deleteOnExit();
+		return run;
+	}
+
+	// the string and its array with their headers, and its characters in the worst case (i.e. not Latin-1), and the
+	// reference in the buffer
+	private static long footprint(final String line) {
+		return 24L + 16L + 2L * line.length() + 8L;
+	}
+
+	private void writeHeader(final BufferedWriter writer) throws IOException {
+		if (root != null) {
+			writer.write(ROOT_HEADER + root);
+			writer.newLine();
+		}
+	}
+
+	private void writeLine(final BufferedWriter writer, final String bufferedLine) throws IOException {
+		final String line = StringUtils.substringBefore(bufferedLine, METADATA_SEPARATOR);
+		if (sort == 2) {
+			writer.write(StringUtils.substringAfterLast(line, " *") + " *" + StringUtils.substringBeforeLast(line, " *"));
+		} else {
+			writer.write(line);
+		}
+		writer.newLine();
+		if (line.length() < bufferedLine.length()) {
+			writer.write(METADATA + bufferedLine.substring(line.length() + 1));
+			writer.newLine();
+		}
+	}
+}
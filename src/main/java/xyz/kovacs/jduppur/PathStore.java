@@ -0,0 +1,215 @@
+package xyz.kovacs.jduppur;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Paths kept as a trie of their (normalized) segments: every directory and file is a node with the id of its parent
+ * and the id of its name, and the names are interned, i.e. a common prefix (and a repeating name) is stored only
+ * once, and a path is referenced by the int id of its last node.
+ *
+ * The first segment is the one before the first separator, i.e. it is empty for absolute Unix paths, and e.g. "C:"
+ * on Windows; the top-level nodes have no parent (-1).
+ *
+ * Paths are added concurrently (by the indexing threads): the (parent, name) -> node table is split into stripes
+ * with their own locks, and the nodes are kept in fixed-size pages, which are never moved, so the lookups of the
+ * nodes need no locking at all.
+ */
+public final class PathStore {
+
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int MAX_NODES = Integer.MAX_VALUE / 2;
+	private static final int STRIPES = 64;
+
+	private final ConcurrentMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+	private final AtomicInteger nameCount = new AtomicInteger();
+	private final String[][] names = new String[MAX_NODES / PAGE_SIZE + 1][];
+
+	private final AtomicInteger count = new AtomicInteger();
+	private final int[][] parents = new int[MAX_NODES / PAGE_SIZE + 1][];
+	private final int[][] nameOf = new int[MAX_NODES / PAGE_SIZE + 1][];
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public PathStore() {
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	// backslashes are separators as well, and empty segments (i.e. repeated separators) are skipped, the same way
+	// jDupPur.properAbsolutePath normalizes the paths
+	public int add(final String path) {
+		int node = -1;
+		int start = 0;
+		for (int i = 0; i <= path.length(); ++i) {
+			if (i == path.length() || path.charAt(i) == '/' || path.charAt(i) == '\\') {
+				if (i > start || node < 0) {
+					node = child(node, path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return node;
+	}
+
+	public String path(final int node) {
+		final List<String> segments = new ArrayList<>();
+		for (int current = node; current >= 0; current = parent(current)) {
+			segments.add(name(current));
+		}
+		final StringBuilder result = new StringBuilder();
+		for (int i = segments.size() - 1; i >= 0; --i) {
+			result.append(segments.get(i));
+			if (i > 0) {
+				result.append('/');
+			}
+		}
+		return result.toString();
+	}
+
+	public int parent(final int node) {
+		return parents[node >>> PAGE_BITS][node & (PAGE_SIZE - 1)];
+	}
+
+	public String name(final int node) {
+		final int nameId = nameOf[node >>> PAGE_BITS][node & (PAGE_SIZE - 1)];
+		return names[nameId >>> PAGE_BITS][nameId & (PAGE_SIZE - 1)];
+	}
+
+	public int depth(final int node) {
+		int result = 0;
+		for (int current = parent(node); current >= 0; current = parent(current)) {
+			++result;
+		}
+		return result;
+	}
+
+	// the deepest node, which is an ancestor of (or the same as) both of the nodes; -1, if they have none in common
+	public int commonAncestor(final int a, final int b) {
+		int left = a;
+		int right = b;
+		int leftDepth = depth(left);
+		int rightDepth = depth(right);
+		for (; leftDepth > rightDepth; --leftDepth) {
+			left = parent(left);
+		}
+		for (; rightDepth > leftDepth; --rightDepth) {
+			right = parent(right);
+		}
+		while (left != right) {
+			left = parent(left);
+			right = parent(right);
+		}
+		return left;
+	}
+
+	// the node is written before it is published in its stripe, thus anybody who got its id sees it
+	private int child(final int parent, final String name) {
+		final int nameId = nameIds.computeIfAbsent(name, n -> {
+			final int id = nameCount.getAndIncrement();
+			page(names, id)[id & (PAGE_SIZE - 1)] = n;
+			return id;
+		});
+		final long key = ((long) (parent + 1) << 32) | (nameId + 1L);
+		final long mixed = key * 0x9E3779B97F4A7C15L;
+		final Stripe stripe = stripes[(int) (mixed >>> 58)];
+		synchronized (stripe) {
+			final int existing = stripe.get(mixed, key);
+			if (existing >= 0) {
+				return existing;
+			}
+			final int node = count.getAndIncrement();
+			if (node >= MAX_NODES) {
+				throw new IllegalStateException("Too many paths in the path store");
+			}
+			page(parents, node)[node & (PAGE_SIZE - 1)] = parent;
+			page(nameOf, node)[node & (PAGE_SIZE - 1)] = nameId;
+			stripe.put(mixed, key, node);
+			return node;
+		}
+	}
+
+	private static int[] page(final int[][] pages, final int index) {
+		final int page = index >>> PAGE_BITS;
+		if (pages[page] == null) {
+			synchronized (pages) {
+				if (pages[page] == null) {
+					pages[page] = new int[PAGE_SIZE];
+				}
+			}
+		}
+		return pages[page];
+	}
+
+	private static String[] page(final String[][] pages, final int index) {
+		final int page = index >>> PAGE_BITS;
+		if (pages[page] == null) {
+			synchronized (pages) {
+				if (pages[page] == null) {
+					pages[page] = new String[PAGE_SIZE];
+				}
+			}
+		}
+		return pages[page];
+	}
+
+	// (parent, name) -> node; keys are never 0, that marks the empty slots; at most half of them are occupied
+	private static final class Stripe {
+
+		private long[] childKeys = new long[64];
+		private int[] children = new int[64];
+		private int size = 0;
+
+		private int get(final long mixed, final long key) {
+			final int mask = childKeys.length - 1;
+			for (int slot = slot(mixed, mask); childKeys[slot] != 0L; slot = (slot + 1) & mask) {
+				if (childKeys[slot] == key) {
+					return children[slot];
+				}
+			}
+			return -1;
+		}
+
+		private void put(final long mixed, final long key, final int node) {
+			if (2 * (size + 1) > childKeys.length) {
+				rehash();
+			}
+			final int mask = childKeys.length - 1;
+			int slot = slot(mixed, mask);
+			while (childKeys[slot] != 0L) {
+				slot = (slot + 1) & mask;
+			}
+			childKeys[slot] = key;
+			children[slot] = node;
+			++size;
+		}
+
+		private void rehash() {
+			final long[] oldKeys = childKeys;
+			final int[] oldChildren = children;
+			childKeys = new long[2 * oldKeys.length];
+			children = new int[childKeys.length];
+			final int mask = childKeys.length - 1;
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != 0L) {
+					int slot = slot(oldKeys[i] * 0x9E3779B97F4A7C15L, mask);
+					while (childKeys[slot] != 0L) {
+						slot = (slot + 1) & mask;
+					}
+					childKeys[slot] = oldKeys[i];
+					children[slot] = oldChildren[i];
+				}
+			}
+		}
+
+		// the top bits of the mixed key select the stripe, the slot is taken from the rest
+		private static int slot(final long mixed, final int mask) {
+			return (int) (mixed ^ (mixed >>> 32)) & mask;
+		}
+	}
+}
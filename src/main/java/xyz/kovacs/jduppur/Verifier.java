@@ -0,0 +1,117 @@
+package xyz.kovacs.jduppur;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// confirms hash-matched files byte-by-byte: the primary file is read once and compared against all of its candidates
+// chunk by chunk, and candidates are dropped at their first difference
+public final class Verifier {
+
+	private static final Logger LOG = LogManager.getLogger(Verifier.class);
+
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int MAX_OPEN_CANDIDATES = 64;
+
+	private static final ThreadLocal<ByteBuffer> PRIMARY_BUFFERS = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+	private static final ThreadLocal<ByteBuffer> CANDIDATE_BUFFERS = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+
+	// returns the candidates, which have the same content as the primary file
+	public static Set<String> identical(final String primary, final List<String> candidates) throws IOException {
+		final Set<String> result = new HashSet<>();
+		final long size = size(Paths.get(primary));
+		if (size < 0L) {
+			return result;
+		}
+
+		final List<String> sameSize = new ArrayList<>(candidates.size());
+		for (final String candidate : candidates) {
+			if (size(Paths.get(candidate)) == size) {
+				sameSize.add(candidate);
+			}
+		}
+		if (size == 0L) {
+			result.addAll(sameSize);
+			return result;
+		}
+
+		// the number of open files is limited, in the worst case the primary is read once per batch
+		for (int i = 0; i < sameSize.size(); i += MAX_OPEN_CANDIDATES) {
+			verify(primary, size, sameSize.subList(i, Math.min(i + MAX_OPEN_CANDIDATES, sameSize.size())), result);
+		}
+		return result;
+	}
+
+	private static void verify(final String primary, final long size, final List<String> candidates,
+			final Set<String> result) throws IOException {
+		final List<Pair<String, FileChannel>> open = new ArrayList<>(candidates.size());
+		try (final FileChannel primaryChannel = FileChannel.open(Paths.get(primary), StandardOpenOption.READ)) {
+			for (final String candidate : candidates) {
+				open.add(Pair.of(candidate, FileChannel.open(Paths.get(candidate), StandardOpenOption.READ)));
+			}
+
+			final ByteBuffer primaryBuffer = PRIMARY_BUFFERS.get();
+			final ByteBuffer candidateBuffer = CANDIDATE_BUFFERS.get();
+			for (long position = 0L; position < size && !open.isEmpty(); position += CHUNK_SIZE) {
+				final int length = (int) Math.min(CHUNK_SIZE, size - position);
+				read(primaryChannel, primaryBuffer, position, length);
+				final Iterator<Pair<String, FileChannel>> iterator = open.iterator();
+				while (iterator.hasNext()) {
+					final Pair<String, FileChannel> candidate = iterator.next();
+					read(candidate.getRight(), candidateBuffer, position, length);
+					primaryBuffer.rewind();
+					if (!primaryBuffer.equals(candidateBuffer)) {
+						LOG.trace("{} and {} differ in the chunk at {}", primary, candidate.getLeft(), position);
+						candidate.getRight().close();
+						iterator.remove();
+					}
+				}
+			}
+			for (final Pair<String, FileChannel> candidate : open) {
+				result.add(candidate.getLeft());
+			}
+		} finally {
+			for (final Pair<String, FileChannel> candidate : open) {
+				candidate.getRight().close();
+			}
+		}
+	}
+
+	// reads exactly length bytes (or up to the end of the file, if it was truncated meanwhile) and flips the buffer
+	private static void read(final FileChannel channel, final ByteBuffer buffer, final long position,
+			final int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+	}
+
+	private static long size(final Path path) throws IOException {
+		try {
+			return Files.size(path);
+		} catch (final NoSuchFileException nsfe) {
+			LOG.error("{}: file does not exist", path);
+			return -1L;
+		}
+	}
+}
@@ -2,22 +2,38 @@ package xyz.kovacs.jduppur;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.commons.collections4.SetUtils;
@@ -25,6 +41,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.RegExUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -48,20 +65,12 @@ public class jDupPur {
 		footprintLoggerThread.start();
 
 		if (Cli.createIndex()) {
-			final Map<String, List<String>> index = createIndex();
-
-			if (Cli.checkDuplicates()) {
-				checkForDuplicates(index);
-			}
-
-			if (Cli.writeOutput()) {
-				writeIndex(index, Cli.getOutput());
-			}
+			createIndex();
 		} else if (Cli.check()) {
 			final Map<String, List<String>> reIndex = reIndex();
 
 			if (Cli.checkDuplicates()) {
-				checkForDuplicates(reIndex);
+				checkForDuplicates(reIndex, Collections.emptySet());
 			}
 		} else if (Cli.createPurgatory()) {
 			final Set<String> toPurge = createPurgatory();
@@ -80,10 +89,6 @@ public class jDupPur {
 		footprintLoggerThread.interrupt();
 	}
 
-	public static <T> Stream<T> conditionallyParallel(final Stream<T> stream, final boolean makeParallel) {
-		return makeParallel ? stream.parallel() : stream; // NOTE: we are not forcing sequential in case !makeParallel
-	}
-
 	public static String humanReadableTime(final long durationInNanos) {
 		final long milliseconds = TimeUnit.MILLISECONDS.convert(durationInNanos, TimeUnit.NANOSECONDS);
 		final StringBuilder builder = new StringBuilder();
@@ -113,65 +118,279 @@ public class jDupPur {
 	}
 
 	public static String properAbsolutePath(final String inproperAbsolutePath) {
+		// most of the paths are proper already, the regexes are only needed for the rest
+		if (StringUtils.indexOf(inproperAbsolutePath, '\\') < 0 && !StringUtils.contains(inproperAbsolutePath, "//")) {
+			return inproperAbsolutePath;
+		}
 		return RegExUtils.replaceAll(RegExUtils.replaceAll(inproperAbsolutePath, "\\\\", "/"), "/+", "/");
 	}
 
-	private static Map<String, List<String>> createIndex() {
+	// the index of the first hash function is checked for duplicates: it is kept in memory, or with a memory budget
+	// it is written (sorted based on hash) into a temporary file
+	private static void createIndex() throws IOException {
 		if (!(Cli.checkDuplicates() || Cli.writeOutput())) {
 			throw new IllegalArgumentException(
 					"When creating a list, it either must be used to check for duplicates ('d') or to write an output ('o')");
 		}
 
-		final Set<String> fileList = Crawler.list(Cli.getInput(), Cli.getExcludes());
-		LOG.info("{} files listed recursively in {}", fileList.size(), Cli.getInput());
+		// text indexes are streamed into their output files, only the binary format and the duplicate check need
+		// the whole index in memory
+		final List<DigestTable> indexes = new ArrayList<>();
+		final PathStore paths = new PathStore();
+		final List<IndexWriter> writers = new ArrayList<>();
+		final List<BiConsumer<String, FileRecord>> sinks = new ArrayList<>();
+		// the budget is shared by the sort buffers
+		final int sortBuffers = (Cli.writeOutput() && Cli.sort() != 0 ? Cli.getHashFunctions().size() : 0)
+				+ (Cli.checkDuplicates() ? 1 : 0);
+		final long budget = Cli.memoryBudget() ? Cli.getMemoryBudget() / Math.max(sortBuffers, 1) : Long.MAX_VALUE;
+		final File spillDirectory = Cli.spillDirectory() ? new File(Cli.getSpillDirectory()) : null;
+		if (Cli.resume()) {
+			deleteStale(spillDirectory);
+		}
+		final File spilled = Cli.memoryBudget() && Cli.checkDuplicates() ? spillFile(spillDirectory) : null;
+		final IndexWriter spilledWriter = spilled == null ? null
+				: new IndexWriter(spilled, 1, budget, null, spillDirectory);
+		for (int i = 0; i < Cli.getHashFunctions().size(); ++i) {
+			final DigestTable index = new DigestTable(paths);
+			indexes.add(index);
+			BiConsumer<String, FileRecord> sink = (digest, record) -> {
+			};
+			if (i == 0 && spilledWriter != null) {
+				sink = sink.andThen((digest, record) -> spilledWriter.accept(digest, record.getPath()));
+			} else if ((i == 0 && Cli.checkDuplicates()) || (Cli.writeOutput() && Cli.binaryIndex())) {
+				sink = sink.andThen((digest, record) -> index.accept(digest, record.getPath()));
+			}
+			if (Cli.writeOutput() && !Cli.binaryIndex()) {
+				final IndexWriter writer = new IndexWriter(new File(Cli.getOutputs().get(i)), Cli.sort(), budget,
+						Cli.indexMetadata() ? properAbsolutePath(Cli.getInput()) : null, spillDirectory);
+				writers.add(writer);
+				sink = sink.andThen(writer::accept);
+			}
+			sinks.add(sink);
+		}
+
 		final long start = System.nanoTime();
-		final Map<String, List<String>> index = Crawler.index(fileList, Cli.getDigest(), Cli.getParallel(),
-				Cli.getExcludes());
+		final HashCache cache = Cli.hashCache() ? HashCache.load(Cli.getHashCache(), Cli.getHashFunctions())
+				: HashCache.disabled(Cli.getHashFunctions());
+		if (Cli.resume()) {
+			cache.withJournal(Cli.getJournal());
+		}
+		// the files, which are not in the index, are only needed for consolidating directories
+		final Set<String> unindexed = ConcurrentHashMap.newKeySet();
+		final Consumer<String> unindexedSink = Cli.checkDuplicates() && Cli.consolidateDirectories() ? unindexed::add
+				: path -> {
+				};
+		final long indexed;
+		if (Cli.sizePrefilter()) {
+			// the size groups are only known, when the whole tree is listed
+			final Map<String, FileRecord> fileList = Crawler.list(Cli.getInput(), Cli.getExcludes(),
+					Cli.getDirectoryExcludes(), Cli.getParallel(), unindexedSink);
+			LOG.info("{} files listed recursively in {}", fileList.size(), Cli.getInput());
+			Set<String> toIndex = Crawler.sizeCollisions(fileList);
+			for (final int sampleSize : Cli.getSampleTiers()) {
+				toIndex = Crawler.sampleCollisions(toIndex, fileList, sampleSize, Cli.getScheduler());
+			}
+			for (final String file : fileList.keySet()) {
+				if (!toIndex.contains(file)) {
+					unindexedSink.accept(file);
+				}
+			}
+			indexed = Crawler.index(toIndex.stream().map(fileList::get).collect(Collectors.toList()),
+					Cli.getDigest(), Cli.getScheduler(), Cli.getExcludes(), cache, sinks, unindexedSink);
+		} else {
+			indexed = Crawler.listAndIndex(Cli.getInput(), Cli.getExcludes(), Cli.getDirectoryExcludes(),
+					Cli.getParallel(), Cli.getDigest(), Cli.getScheduler(), cache, sinks, unindexedSink);
+		}
 		final long end = System.nanoTime();
-		LOG.info("{} files indexed into {} hashes in {}", index.values().stream().flatMap(List::stream).count(),
-				index.size(), humanReadableTime(end - start));
-		if (LOG.isTraceEnabled()) {
-			final SortedMap<String, List<String>> sorted = new TreeMap<>(index);
-			for (final Entry<String, List<String>> entry : sorted.entrySet()) {
-				LOG.trace("{} : {}", entry.getKey(), entry.getValue());
+		cache.save(Cli.getInput());
+		LOG.info("{} files indexed in {}", indexed, humanReadableTime(end - start));
+
+		for (int i = 0; i < writers.size(); ++i) {
+			writers.get(i).close();
+			LOG.info("{} entries written into index {}", writers.get(i).getCount(), Cli.getOutputs().get(i));
+		}
+		if (Cli.writeOutput() && Cli.binaryIndex()) {
+			for (int i = 0; i < indexes.size(); ++i) {
+				writeIndex(indexes.get(i), Cli.getOutputs().get(i));
 			}
 		}
-		return index;
+
+		if (spilledWriter != null) {
+			try {
+				spilledWriter.close();
+				checkForDuplicates(spilled, unindexed);
+			} finally {
+				Files.deleteIfExists(spilled.toPath());
+			}
+		} else {
+			final Map<String, List<String>> index = indexes.get(0);
+			if (LOG.isTraceEnabled()) {
+				final SortedMap<String, List<String>> sorted = new TreeMap<>(index);
+				for (final Entry<String, List<String>> entry : sorted.entrySet()) {
+					LOG.trace("{} : {}", entry.getKey(), entry.getValue());
+				}
+			}
+			if (Cli.checkDuplicates()) {
+				checkForDuplicates(index, unindexed);
+			}
+		}
+		cache.deleteJournal();
 	}
 
 	private static Map<String, List<String>> reIndex() throws IOException {
-		final List<String> input = FileUtils.readLines(new File(Cli.getInput()), StandardCharsets.UTF_8);
-		LOG.info("{} files listed in index {}", input.size(), Cli.getInput());
+		final Map<String, List<String>> input = readIndex(Cli.getInput());
 
 		final long start = System.nanoTime();
-		Map<String, List<String>> reIndex = Crawler.reIndex(input, Cli.getDigest(), Cli.getParallel(),
-				Cli.getExcludes());
+		Map<String, List<String>> reIndex = Crawler.reIndex(input, Cli.getDigest(), Cli.getScheduler(),
+				Cli.getExcludes(), Cli.getParallel());
 		final long end = System.nanoTime();
-		LOG.info("{} files re-indexed in {}", input.size(), humanReadableTime(end - start));
+		LOG.info("Index {} re-indexed in {}", Cli.getInput(), humanReadableTime(end - start));
 
 		return reIndex;
 	}
 
+	// the root of the index is listed again: the digests of the files, which did not change, are taken over from the
+	// index, the new and changed files are hashed, and the files, which do not exist anymore, are dropped
 	private static void updateIndex(final String outputFileName) throws IOException {
-		final Map<String, List<String>> index = readIndex(Cli.getInput());
-		
-		final Map<String, List<String>> updatedIndex = new HashMap<>(index.size() + 1, 1.0f);
-		
-		for (final Entry<String, List<String>> entry : index.entrySet()) {
-			for (final String file : entry.getValue()) {
-				if (new File(file).exists()) {
-					updatedIndex.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(file);
+		final File input = new File(Cli.getInput());
+		final Map<String, Triple<String, Long, Long>> storedIndex;
+		if (BinaryIndex.isBinary(input)) {
+			storedIndex = new HashMap<>();
+			for (final Entry<String, List<String>> entry : readIndex(Cli.getInput()).entrySet()) {
+				for (final String file : entry.getValue()) {
+					storedIndex.put(file, Triple.of(entry.getKey(), null, null));
+				}
+			}
+		} else {
+			storedIndex = IndexReader.readEntries(input);
+			LOG.info("{} files listed in index {}", storedIndex.size(), Cli.getInput());
+		}
+		final String storedRoot = IndexReader.root(input);
+		final String root = storedRoot != null ? storedRoot : commonDirectory(storedIndex.keySet());
+		if (storedRoot == null && root != null && Paths.get(root + "/").getNameCount() == 0) {
+			// e.g. an index of two top-level trees, the whole filesystem would be listed and merged into the index
+			throw new IllegalArgumentException("Index " + Cli.getInput()
+					+ " has no root (see -i,--index-metadata), and its files have no common directory but " + root);
+		}
+		if (root != null && !new File(root).isDirectory()) {
+			// e.g. an unmounted drive, every file would be dropped from the index
+			throw new IllegalArgumentException("Root of the index is not a directory: " + root);
+		}
+		if (!storedIndex.isEmpty()) {
+			checkHashFunction(storedIndex.values().iterator().next().getLeft());
+		}
+
+		final Map<String, FileRecord> fileList = root == null ? new HashMap<>()
+				: Crawler.list(root, Cli.getExcludes(), Cli.getDirectoryExcludes(), Cli.getParallel(), path -> {
+				});
+		// the index itself is not part of the index
+		fileList.remove(properAbsolutePath(input.getAbsolutePath()));
+		fileList.remove(properAbsolutePath(new File(outputFileName).getAbsolutePath()));
+		LOG.info("{} files listed recursively in {}", fileList.size(), root);
+		final Pair<List<FileRecord>, List<FileRecord>> files = Crawler.changedFiles(fileList, storedIndex,
+				input.lastModified(), Cli.trustIndexTime());
+
+		final long start = System.nanoTime();
+		final long indexed;
+		if (Cli.binaryIndex()) {
+			final DigestTable index = new DigestTable();
+			for (final FileRecord file : files.getLeft()) {
+				index.accept(storedIndex.get(file.getPath()).getLeft(), file.getPath());
+			}
+			indexed = Crawler.index(files.getRight(), Cli.getDigest(), Cli.getScheduler(), Cli.getExcludes(),
+					HashCache.disabled(Cli.getHashFunctions()),
+					List.of((digest, record) -> index.accept(digest, record.getPath())), path -> {
+					});
+			writeIndex(index, outputFileName);
+		} else {
+			// an index with metadata keeps it
+			LOG.info("Writing index into {}", outputFileName);
+			try (final IndexWriter writer = new IndexWriter(new File(outputFileName), Cli.sort(), Long.MAX_VALUE,
+					Cli.indexMetadata() || storedRoot != null ? root : null)) {
+				for (final FileRecord file : files.getLeft()) {
+					writer.accept(storedIndex.get(file.getPath()).getLeft(), file);
 				}
+				indexed = Crawler.index(files.getRight(), Cli.getDigest(), Cli.getScheduler(), Cli.getExcludes(),
+						HashCache.disabled(Cli.getHashFunctions()), List.of(writer::accept), path -> {
+						});
+			}
+			LOG.info("Index written into {}", outputFileName);
+		}
+		final long end = System.nanoTime();
+		final long removed = storedIndex.keySet().stream().filter(file -> !fileList.containsKey(file)).count();
+		LOG.info("{} files kept, {} files indexed in {}, {} files removed from index {}", files.getLeft().size(),
+				indexed, humanReadableTime(end - start), removed, Cli.getInput());
+	}
+
+	// spilling into the temporary directory would not save any memory, if it is memory-backed (e.g. tmpfs); the
+	// spilled index of a resumable run is named after its journal, so that it is found, if the run is killed
+	private static File spillFile(final File spillDirectory) throws IOException {
+		final File spilled = Files.createTempFile(spillFileDirectory(spillDirectory).toPath(), spillFilePrefix(),
+				".index").toFile();
+		spilled.deleteOnExit();
+		return spilled;
+	}
+
+	private static File spillFileDirectory(final File spillDirectory) {
+		if (spillDirectory != null) {
+			return spillDirectory;
+		}
+		return Cli.writeOutput() ? new File(Cli.getOutputs().get(0)).getAbsoluteFile().getParentFile()
+				: new File("").getAbsoluteFile();
+	}
+
+	private static String spillFilePrefix() {
+		return Cli.resume() ? new File(Cli.getJournal()).getName() + "." : "jDupPur";
+	}
+
+	// the temporary files of a killed run (i.e. of the one to be resumed) are left behind, they are deleted, before
+	// they are written anew
+	private static void deleteStale(final File spillDirectory) throws IOException {
+		if (Cli.writeOutput()) {
+			for (final String output : Cli.getOutputs()) {
+				IndexWriter.deleteStale(new File(output), spillDirectory);
 			}
 		}
-		
-		writeIndex(updatedIndex, outputFileName);
+		final String prefix = spillFilePrefix();
+		try (final DirectoryStream<Path> stale = Files.newDirectoryStream(spillFileDirectory(spillDirectory).toPath(),
+				path -> path.getFileName().toString().startsWith(prefix)
+						&& path.getFileName().toString().endsWith(".index"))) {
+			for (final Path spilled : stale) {
+				IndexWriter.deleteStale(spilled.toFile(), spillDirectory);
+				Files.deleteIfExists(spilled);
+				LOG.debug("Stale spilled index {} deleted", spilled);
+			}
+		}
+	}
+
+	// the deepest directory, which contains all of the files; null, if there are no files
+	private static String commonDirectory(final Set<String> files) {
+		if (files.isEmpty()) {
+			return null;
+		}
+		// a common prefix ending within a name is cut back to its directory as well
+		final String directory = StringUtils.substringBeforeLast(
+				StringUtils.getCommonPrefix(files.toArray(new String[0])), "/");
+		return directory.isEmpty() ? "/" : directory;
+	}
+
+	// the digests of an index cannot be mixed with the ones of another hash function
+	private static void checkHashFunction(final String storedDigest) {
+		if (!Cli.getDigest().hasFormat(storedDigest)) {
+			throw new IllegalArgumentException("Index " + Cli.getInput() + " was not created with hash function "
+					+ Cli.getHashFunctions().get(0) + ", set it with -@,--hash-function");
+		}
 	}
 
 	private static Set<String> createPurgatory() throws IOException {
 		final String[] indexes = Cli.getInput().split("\\*");
-		final Pair<List<Pair<String, String>>, List<Pair<String, String>>> purgatory = diffIndexes(
-				readIndex(indexes[0]), readIndex(indexes[1]));
+		final Pair<List<Pair<String, String>>, List<Pair<String, String>>> purgatory;
+		if (IndexReader.isHashSorted(new File(indexes[0])) && IndexReader.isHashSorted(new File(indexes[1]))) {
+			LOG.info("Both indexes are sorted by hashes, merging them without loading them into memory");
+			purgatory = diffSortedIndexes(new File(indexes[0]), new File(indexes[1]));
+		} else {
+			purgatory = diffIndexes(readIndex(indexes[0]), readIndex(indexes[1]));
+		}
 
 		if (LOG.isDebugEnabled()) {
 			purgatory.getLeft().stream().forEach(p -> {
@@ -205,50 +424,83 @@ public class jDupPur {
 		return toPurge;
 	}
 
-	private static void checkForDuplicates(final Map<String, List<String>> index) throws IOException {
-		final Pair<List<Pair<String, String>>, List<Pair<String, String>>> diff = diffIndexes(index, index);
+	private static void checkForDuplicates(final Map<String, List<String>> index, final Set<String> unindexed)
+			throws IOException {
+		checkForDuplicates(index, Cli.consolidateDirectories() ? DirectoryHashes.of(index, unindexed) : null);
+	}
+
+	// the index is read group by group, and only the groups with more than one file (i.e. the possible duplicates)
+	// are kept in memory
+	private static void checkForDuplicates(final File sortedIndex, final Set<String> unindexed) throws IOException {
+		final Map<String, List<String>> candidates = new HashMap<>();
+		try (final IndexReader reader = new IndexReader(sortedIndex)) {
+			Pair<String, List<String>> group;
+			while ((group = reader.nextGroup()) != null) {
+				if (group.getValue().size() > 1) {
+					candidates.put(group.getKey(), group.getValue());
+				}
+			}
+			LOG.info("{} files in {} groups with the same hash read from {}", candidates.values().stream()
+					.mapToInt(List::size).sum(), candidates.size(), sortedIndex);
+		}
+		checkForDuplicates(candidates, Cli.consolidateDirectories() ? DirectoryHashes.of(sortedIndex, unindexed) : null);
+	}
+
+	private static void checkForDuplicates(final Map<String, List<String>> index, final DirectoryHashes hashes)
+			throws IOException {
+		// every hash group is handled once, and its files are verified together, instead of diffing the index with
+		// itself
+		final List<List<String>> clusters = inPartitions(index,
+				(entry, partial) -> clusterEntry(entry.getKey(), entry.getValue(), partial));
+
+		final List<Pair<String, String>> pairs = new ArrayList<>();
+		for (final List<String> cluster : clusters) {
+			for (final String duplicate : cluster.subList(1, cluster.size())) {
+				pairs.add(Pair.of(cluster.get(0), duplicate));
+			}
+		}
+		final Pair<List<Pair<String, String>>, List<Pair<String, String>>> diff = consolidate(pairs, hashes, hashes);
 
 		diff.getLeft().stream().forEach(p -> {
 			LOG.warn("Duplicate directories found:" + System.getProperty("line.separator") + "\tdir A: {}"
 					+ System.getProperty("line.separator") + "\tdir B: {}", p.getLeft(), p.getRight());
 		});
-		diff.getRight().stream().forEach(p -> {
-			LOG.warn("Duplicate files found:" + System.getProperty("line.separator") + "\tfile A: {}"
-					+ System.getProperty("line.separator") + "\tfile B: {}", p.getLeft(), p.getRight());
-		});
+
+		// files in consolidated directories are not reported again
+		final Map<String, List<String>> groups = new LinkedHashMap<>();
+		for (final Pair<String, String> pair : diff.getRight()) {
+			groups.computeIfAbsent(pair.getLeft(), k -> new ArrayList<>(List.of(k))).add(pair.getRight());
+		}
+		long reclaimable = 0L;
+		for (final List<String> group : groups.values()) {
+			final long groupReclaimable = new File(group.get(0)).length() * (group.size() - 1);
+			reclaimable += groupReclaimable;
+			LOG.warn("Duplicate files found ({} files, {} reclaimable):{}", group.size(),
+					FileUtils.byteCountToDisplaySize(groupReclaimable),
+					group.stream()
+							.map(f -> System.getProperty("line.separator") + "\tfile: " + f)
+							.collect(Collectors.joining()));
+		}
+		LOG.info("{} groups of duplicate files found, {} reclaimable", groups.size(),
+				FileUtils.byteCountToDisplaySize(reclaimable));
 	}
 
 	private static void writeIndex(final Map<String, List<String>> index, final String outputFileName)
 			throws IOException {
-		final List<String> output = new ArrayList<>(index.size());
 		LOG.info("Writing index into {}", outputFileName);
-		if (Cli.sort() == 0) {
-			for (final Entry<String, List<String>> entry : index.entrySet()) {
-				for (final String fileName : entry.getValue()) {
-					output.add(entry.getKey() + " *" + properAbsolutePath(fileName));
-				}
-			}
-		} else if (Cli.sort() == 1) {
-			for (final Entry<String, List<String>> entry : index.entrySet()) {
-				for (final String fileName : entry.getValue()) {
-					output.add(entry.getKey() + " *" + properAbsolutePath(fileName));
-				}
-			}
-			Collections.sort(output);
-		} else if (Cli.sort() == 2) {
-			final List<String> sorted = new ArrayList<>(index.size());
+		if (Cli.binaryIndex()) {
+			BinaryIndex.write(index, new File(outputFileName));
+			LOG.info("Binary index written into {}", outputFileName);
+			return;
+		}
+
+		try (final IndexWriter writer = new IndexWriter(new File(outputFileName), Cli.sort())) {
 			for (final Entry<String, List<String>> entry : index.entrySet()) {
 				for (final String fileName : entry.getValue()) {
-					sorted.add(properAbsolutePath(fileName) + " *" + entry.getKey());
+					writer.accept(entry.getKey(), properAbsolutePath(fileName));
 				}
 			}
-			Collections.sort(sorted);
-			output.addAll(sorted.stream()
-					.map(e -> StringUtils.splitByWholeSeparator(e, " *", 2))
-					.map(e -> e[1] + " *" + e[0])
-					.collect(Collectors.toList()));
 		}
-		FileUtils.writeLines(new File(outputFileName), StandardCharsets.UTF_8.name(), output);
 		LOG.info("Index written into {}", outputFileName);
 	}
 
@@ -261,14 +513,23 @@ public class jDupPur {
 	}
 
 	private static Map<String, List<String>> readIndex(final String indexFileName) throws IOException {
+		if (BinaryIndex.isBinary(new File(indexFileName))) {
+			return BinaryIndex.open(new File(indexFileName));
+		}
+
 		final List<String> input = FileUtils.readLines(new File(indexFileName), StandardCharsets.UTF_8);
-		LOG.info("{} files listed in index {}", input.size(), indexFileName);
 
 		final Map<String, List<String>> index = new HashMap<>(input.size(), 1.0f);
+		long count = 0L;
 		for (final String line : input) {
+			if (line.startsWith(IndexWriter.METADATA)) {
+				continue; // the metadata is not needed here
+			}
 			final String[] entry = StringUtils.splitByWholeSeparator(line, " *", 2);
 			index.computeIfAbsent(entry[0], k -> new ArrayList<>(1)).add(entry[1]);
+			++count;
 		}
+		LOG.info("{} files listed in index {}", count, indexFileName);
 
 		return index;
 	}
@@ -277,120 +538,321 @@ public class jDupPur {
 			final Map<String, List<String>> primaryIndex, final Map<String, List<String>> purgatoryIndex)
 			throws IOException {
 
-		final List<Pair<String, String>> files = new ArrayList<>();
-
 		LOG.debug("Starting to proces {} entries in primary index", primaryIndex.size());
-		int counter = 0;
-
-		for (final Entry<String, List<String>> primaryEntry : primaryIndex.entrySet()) {
-			++counter;
-			LOG.trace("At entry {} out of {}", counter, primaryIndex.size());
-			if (counter % 1000 == 0) {
-				LOG.debug("At entry {} out of {}", counter, primaryIndex.size());
-			}
-			String consideredFile = primaryEntry.getValue().get(0);
-			seeker: if (!Cli.getExcludes().isEmpty()
-					&& !(Cli.getExcludes().size() == 1 && Cli.getExcludes().iterator().next().pattern().equals(":"))) {
-				for (final Pattern exclusionPattern : Cli.getExcludes()) {
-					for (final String candidateFile : primaryEntry.getValue()) {
-						if (!exclusionPattern.matcher(candidateFile).matches()) {
-							consideredFile = candidateFile;
-							break seeker;
-						}
-					}
-				}
-				continue;
-			}
+		final List<Pair<String, String>> files = inPartitions(primaryIndex,
+				(primaryEntry, partial) -> diffEntry(primaryEntry.getKey(), primaryEntry.getValue(),
+						purgatoryIndex.getOrDefault(primaryEntry.getKey(), Collections.emptyList()), partial));
 
-			for (final String candidateDuplicate : purgatoryIndex.getOrDefault(primaryEntry.getKey(),
-					Collections.emptyList())) {
-				if (consideredFile.equals(candidateDuplicate)) {
-					continue;
-				}
+		if (!Cli.consolidateDirectories()) {
+			return consolidate(files, null, null);
+		}
+		final DirectoryHashes primaryHashes = DirectoryHashes.of(primaryIndex, Collections.emptySet());
+		return consolidate(files, primaryHashes, primaryIndex == purgatoryIndex ? primaryHashes
+				: DirectoryHashes.of(purgatoryIndex, Collections.emptySet()));
+	}
 
-				if (FileUtils.contentEquals(new File(consideredFile), new File(candidateDuplicate))) {
-					files.add(Pair.of(consideredFile, candidateDuplicate));
-				} else {
-					LOG.fatal(
-							"You got a hash collision, how awesome is that? 😁 Hash: {}"
-									+ System.getProperty("line.separator") + "\tfileA: {}"
-									+ System.getProperty("line.separator") + "\tfileB: {}",
-							primaryEntry.getKey(), consideredFile, candidateDuplicate);
-				}
+	// the index is partitioned into ranges of digests, the partitions are processed in parallel, and the partial
+	// results are concatenated in the partitions' order, thus the result is deterministic regardless of the scheduling;
+	// the entries are not copied: a binary index is read range by range, the other ones are looked up digest by digest
+	private static <T> List<T> inPartitions(final Map<String, List<String>> index, final PartitionWorker<T> worker)
+			throws IOException {
+		final int threads = Cli.getParallel() ? Runtime.getRuntime().availableProcessors() : 1;
+		final int partitionCount = threads == 1 ? 1 : threads * 4;
+		// partition i starts with the 16 bit prefix bounds[i]
+		final int[] bounds = new int[partitionCount + 1];
+		for (int i = 0; i <= partitionCount; ++i) {
+			bounds[i] = (int) ((i * 65536L + partitionCount - 1) / partitionCount);
+		}
+		final List<List<String>> digests = new ArrayList<>(partitionCount);
+		if (!(index instanceof BinaryIndex)) {
+			for (int i = 0; i < partitionCount; ++i) {
+				digests.add(new ArrayList<>());
+			}
+			for (final String digest : index.keySet()) {
+				digests.get((int) ((long) prefix(digest) * partitionCount >>> 16)).add(digest);
 			}
 		}
 
-		List<Pair<String, String>> directories = new ArrayList<>();
-		if (Cli.consolidateDirectories()) {
-			counter = 0;
-			LOG.debug("Consolidating directories for {} file pairs", files.size());
-			List<String> primaries = files.stream()
-					.map(Pair::getLeft)
-					.map(jDupPur::properAbsolutePath)
-					.collect(Collectors.toList());
-			List<String> secondaries = files.stream()
-					.map(Pair::getRight)
-					.map(jDupPur::properAbsolutePath)
-					.collect(Collectors.toList());
-			primary: for (final String primary : primaries) {
-				++counter;
-				LOG.trace("Consolidating pair number {} out of {}", counter, files.size());
-				if (counter % 1000 == 0) {
-					LOG.debug("Consolidating pair number {} out of {}", counter, files.size());
+		LOG.debug("{} entries are processed in {} partition(s) with {} thread(s)", index.size(), partitionCount,
+				threads);
+		final AtomicInteger counter = new AtomicInteger(0);
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.submit(() -> IntStream.range(0, partitionCount).parallel().mapToObj(partition -> {
+				final Iterator<Entry<String, List<String>>> entries;
+				if (index instanceof BinaryIndex) {
+					entries = ((BinaryIndex) index).groups(bounds[partition], bounds[partition + 1]);
+				} else {
+					final List<String> partitionDigests = digests.get(partition);
+					Collections.sort(partitionDigests);
+					entries = partitionDigests.stream().map(digest -> Map.entry(digest, index.get(digest))).iterator();
 				}
-				for (final Pair<String, String> directory : directories) {
-					if (StringUtils.startsWithIgnoreCase(primary, directory.getLeft())) {
-						continue primary;
+				final List<T> partial = new ArrayList<>();
+				while (entries.hasNext()) {
+					final Entry<String, List<String>> entry = entries.next();
+					final int current = counter.incrementAndGet();
+					LOG.trace("At entry {} out of {}", current, index.size());
+					if (current % 1000 == 0) {
+						LOG.debug("At entry {} out of {}", current, index.size());
+					}
+					try {
+						worker.process(entry, partial);
+					} catch (final IOException ie) {
+						throw new UncheckedIOException(ie);
 					}
 				}
+				return partial;
+			}).flatMap(List::stream).collect(Collectors.toList())).get();
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while comparing the indexes", ie);
+		} catch (final ExecutionException ee) {
+			if (ee.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) ee.getCause()).getCause();
+			}
+			throw new IllegalStateException("Comparing the indexes failed", ee.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
 
-				secondary: for (final String secondary : secondaries) {
-					for (final Pair<String, String> directory : directories) {
-						if (StringUtils.startsWithIgnoreCase(secondary, directory.getRight())) {
-							continue secondary;
-						}
-					}
+	// the leading 16 bits of the digest (after its tag), i.e. the same bits, on which a binary index is sorted
+	private static int prefix(final String digest) {
+		final int start = digest.indexOf(':') + 1;
+		int result = 0;
+		for (int i = start; i < start + 4; ++i) {
+			result = (result << 4) | (i < digest.length() ? Math.max(Character.digit(digest.charAt(i), 16), 0) : 0);
+		}
+		return result;
+	}
+
+	// merge-join of two hash-sorted indexes, memory is bounded by the largest hash group (and the found duplicates)
+	private static Pair<List<Pair<String, String>>, List<Pair<String, String>>> diffSortedIndexes(
+			final File primaryIndex, final File purgatoryIndex) throws IOException {
 
-					if (StringUtils.substringAfterLast(primary, "/")
-							.equals(StringUtils.substringAfterLast(secondary, "/"))) {
-						final String primaryDirectory = StringUtils.substringBeforeLast(primary, "/");
-						final Collection<String> primaryFiles = FileUtils
-								.listFiles(new File(primaryDirectory), null, false)
-								.stream()
-								.map(File::getAbsolutePath)
-								.map(jDupPur::properAbsolutePath)
-								.collect(Collectors.toList());
-						if (primaries.containsAll(primaryFiles)) {
-							final String secondaryDirectory = StringUtils.substringBeforeLast(secondary, "/");
-							final Collection<String> secondaryFiles = FileUtils
-									.listFiles(new File(secondaryDirectory), null, false)
-									.stream()
-									.map(File::getAbsolutePath)
-									.map(jDupPur::properAbsolutePath)
-									.collect(Collectors.toList());
-							if (secondaries.containsAll(secondaryFiles)) {
-								directories.add(Pair.of(primaryDirectory, secondaryDirectory));
-							}
-						}
+		final List<Pair<String, String>> files = new ArrayList<>();
+
+		try (final IndexReader primary = new IndexReader(primaryIndex);
+				final IndexReader purgatory = new IndexReader(purgatoryIndex)) {
+			Pair<String, List<String>> primaryEntry = primary.nextGroup();
+			Pair<String, List<String>> purgatoryEntry = purgatory.nextGroup();
+			int counter = 0;
+			while (primaryEntry != null && purgatoryEntry != null) {
+				final int order = primaryEntry.getKey().compareTo(purgatoryEntry.getKey());
+				if (order < 0) {
+					primaryEntry = primary.nextGroup();
+				} else if (order > 0) {
+					purgatoryEntry = purgatory.nextGroup();
+				} else {
+					++counter;
+					LOG.trace("At common entry {}", counter);
+					if (counter % 1000 == 0) {
+						LOG.debug("At common entry {}", counter);
 					}
+					diffEntry(primaryEntry.getKey(), primaryEntry.getValue(), purgatoryEntry.getValue(), files);
+					primaryEntry = primary.nextGroup();
+					purgatoryEntry = purgatory.nextGroup();
 				}
 			}
+			LOG.debug("{} hashes are in both indexes, {} and {} files read so far", counter, primary.getCount(),
+					purgatory.getCount());
 		}
-		LOG.debug("{} directories found during consolidation", directories.size());
-		List<String> directoriesToSkip = directories.stream().map(Pair::getRight).collect(Collectors.toList());
-		List<Pair<String, String>> filesNotInDuplicateDirectories = files.stream().filter(p -> {
-			for (final String directory : directoriesToSkip) {
-				if (p.getRight().startsWith(directory)) {
-					return false;
+
+		if (!Cli.consolidateDirectories()) {
+			return consolidate(files, null, null);
+		}
+		return consolidate(files, DirectoryHashes.of(primaryIndex, Collections.emptySet()),
+				DirectoryHashes.of(purgatoryIndex, Collections.emptySet()));
+	}
+
+	private static void diffEntry(final String digest, final List<String> primaryFiles,
+			final List<String> candidates, final List<Pair<String, String>> files) throws IOException {
+		final String consideredFile = consideredFile(primaryFiles);
+		if (consideredFile == null) {
+			return;
+		}
+
+		final List<String> otherFiles = candidates.stream()
+				.filter(c -> !consideredFile.equals(c))
+				.collect(Collectors.toList());
+		final Set<String> identicalFiles = identical(digest, consideredFile, otherFiles);
+		for (final String candidateDuplicate : otherFiles) {
+			if (identicalFiles.contains(candidateDuplicate)) {
+				files.add(Pair.of(consideredFile, candidateDuplicate));
+			}
+		}
+	}
+
+	// a group of files with the same digest is split into clusters of identical files (more than one cluster only
+	// in case of hash collisions), the first file of each cluster is the one to keep
+	private static void clusterEntry(final String digest, final List<String> groupFiles,
+			final List<List<String>> clusters) throws IOException {
+		if (groupFiles.size() < 2) {
+			return;
+		}
+		// in the order of the paths, i.e. the report does not depend on the order, in which the files were indexed
+		final List<String> sortedFiles = groupFiles.stream().sorted().collect(Collectors.toList());
+		final String consideredFile = consideredFile(sortedFiles);
+		if (consideredFile == null) {
+			return;
+		}
+
+		List<String> remaining = new ArrayList<>(sortedFiles.size());
+		remaining.add(consideredFile);
+		remaining.addAll(sortedFiles.stream().filter(f -> !consideredFile.equals(f)).collect(Collectors.toList()));
+		while (remaining.size() > 1) {
+			final String primaryFile = remaining.get(0);
+			final List<String> otherFiles = remaining.subList(1, remaining.size());
+			final Set<String> identicalFiles = identical(digest, primaryFile, otherFiles);
+			if (!identicalFiles.isEmpty()) {
+				final List<String> cluster = new ArrayList<>(identicalFiles.size() + 1);
+				cluster.add(primaryFile);
+				cluster.addAll(otherFiles.stream().filter(identicalFiles::contains).collect(Collectors.toList()));
+				clusters.add(cluster);
+			}
+			remaining = otherFiles.stream().filter(f -> !identicalFiles.contains(f)).collect(Collectors.toList());
+		}
+	}
+
+	// the first file of the group, which is not excluded
+	private static String consideredFile(final List<String> groupFiles) {
+		if (Cli.getExcludes().isEmpty()) {
+			return groupFiles.get(0);
+		}
+		for (final String candidateFile : groupFiles) {
+			if (!Cli.getExcludes().matches(candidateFile)) {
+				return candidateFile;
+			}
+		}
+		return null;
+	}
+
+	private static Set<String> identical(final String digest, final String primaryFile, final List<String> otherFiles)
+			throws IOException {
+		if (Cli.trustDigests() && Cli.getDigest().isCollisionResistant(digest)) {
+			return new HashSet<>(otherFiles);
+		}
+		final Set<String> identicalFiles = Verifier.identical(primaryFile, otherFiles);
+		for (final String candidateDuplicate : otherFiles) {
+			if (!identicalFiles.contains(candidateDuplicate)) {
+				LOG.fatal(
+						"You got a hash collision, how awesome is that? 😁 Hash: {}"
+								+ System.getProperty("line.separator") + "\tfileA: {}"
+								+ System.getProperty("line.separator") + "\tfileB: {}",
+						digest, primaryFile, candidateDuplicate);
+			}
+		}
+		return identicalFiles;
+	}
+
+	// directories of the purgatory, which have the same content hash as a directory of the primary, are reported
+	// instead of their files; the outermost ones are taken, i.e. identical subtrees are reported as one directory;
+	// a directory is only taken, if all of its files are in the (verified) file pairs, i.e. the directory hashes
+	// alone (which are based on the digests of the index) never decide, and if it has no other files on the disk
+	// either (i.e. files excluded from the index or created since then)
+	private static Pair<List<Pair<String, String>>, List<Pair<String, String>>> consolidate(
+			final List<Pair<String, String>> files, final DirectoryHashes primaryHashes,
+			final DirectoryHashes purgatoryHashes) {
+		final List<Pair<String, String>> directories = new ArrayList<>();
+		if (!Cli.consolidateDirectories() || files.isEmpty()) {
+			return Pair.of(directories, files);
+		}
+
+		LOG.debug("Consolidating directories for {} file pairs", files.size());
+		final Map<String, List<String>> primaryDirectories = new HashMap<>();
+		for (final Entry<String, String> directory : primaryHashes.getHashes().entrySet()) {
+			primaryDirectories.computeIfAbsent(directory.getValue(), k -> new ArrayList<>()).add(directory.getKey());
+		}
+		for (final List<String> candidates : primaryDirectories.values()) {
+			Collections.sort(candidates);
+		}
+
+		// directory -> number of its files (recursively), which are verified duplicates
+		final Map<String, Long> verified = new HashMap<>();
+		final Set<String> verifiedFiles = files.stream()
+				.map(p -> properAbsolutePath(p.getRight()))
+				.collect(Collectors.toSet());
+		for (final String file : verifiedFiles) {
+			for (String directory = StringUtils.substringBeforeLast(file, "/"); !directory.isEmpty();
+					directory = directory.contains("/") ? StringUtils.substringBeforeLast(directory, "/") : "") {
+				verified.merge(directory, 1L, Long::sum);
+			}
+		}
+
+		// when an index is compared with itself, the first one of identical directories is kept
+		final boolean self = primaryHashes == purgatoryHashes;
+		final Set<String> consolidated = new HashSet<>();
+		// ancestors are sorted before their descendants
+		final SortedMap<String, String> purgatoryDirectories = new TreeMap<>(purgatoryHashes.getHashes());
+		for (final Entry<String, String> directory : purgatoryDirectories.entrySet()) {
+			if (isWithin(directory.getKey(), consolidated) || verified.getOrDefault(directory.getKey(),
+					0L) != purgatoryHashes.getFileCount(directory.getKey())) {
+				continue;
+			}
+			for (final String candidate : primaryDirectories.getOrDefault(directory.getValue(),
+					Collections.emptyList())) {
+				if (self && candidate.compareTo(directory.getKey()) >= 0) {
+					break;
 				}
+				if (candidate.equals(directory.getKey()) || isWithin(candidate, consolidated)
+						|| candidate.startsWith(directory.getKey() + "/")
+						|| directory.getKey().startsWith(candidate + "/")) {
+					continue;
+				}
+				if (!hasOnly(directory.getKey(), verifiedFiles)) {
+					break;
+				}
+				directories.add(Pair.of(candidate, directory.getKey()));
+				consolidated.add(directory.getKey());
+				break;
 			}
-			return true;
-		}).collect(Collectors.toList());
+		}
+		LOG.debug("{} directories found during consolidation", directories.size());
+
+		final List<Pair<String, String>> filesNotInDuplicateDirectories = files.stream()
+				.filter(p -> !isWithin(StringUtils.substringBeforeLast(properAbsolutePath(p.getRight()), "/"),
+						consolidated))
+				.collect(Collectors.toList());
 		LOG.debug("{} files left after directory consolidation", filesNotInDuplicateDirectories.size());
 
 		return Pair.of(directories, filesNotInDuplicateDirectories);
 	}
 
+	// whether every file on the disk (recursively, incl. symlinks and other non-directories) is one of the given ones
+	private static boolean hasOnly(final String directory, final Set<String> files) {
+		try (final Stream<Path> walk = Files.walk(Paths.get(directory))) {
+			final Optional<String> other = walk
+					.filter(p -> !Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))
+					.map(p -> properAbsolutePath(p.toAbsolutePath().toString()))
+					.filter(f -> !files.contains(f))
+					.findFirst();
+			other.ifPresent(f -> LOG.debug("{}: not consolidated, {} is not a verified duplicate", directory, f));
+			return other.isEmpty();
+		} catch (final IOException | UncheckedIOException | InvalidPathException e) {
+			LOG.debug("{}: not consolidated, it cannot be listed", directory);
+			return false;
+		}
+	}
+
+	// whether the directory or any of its ancestors is one of the given ones
+	private static boolean isWithin(final String directory, final Set<String> directories) {
+		for (String current = directory; !current.isEmpty(); current = StringUtils.substringBeforeLast(current, "/")) {
+			if (directories.contains(current)) {
+				return true;
+			}
+			if (!current.contains("/")) {
+				break;
+			}
+		}
+		return directories.contains("");
+	}
+
+	@FunctionalInterface
+	private interface PartitionWorker<T> {
+
+		void process(Entry<String, List<String>> entry, List<T> partial) throws IOException;
+	}
+
 	private static final class FootprintLogger implements Runnable {
 
 		private static final Logger LOG = LogManager.getLogger(FootprintLogger.class);